@@ -0,0 +1,69 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.junit;
+
+import com.google.jenkins.flakyTestHandler.junit.FlakyCaseResult.FlakyRunInformation;
+
+import java.util.List;
+
+/**
+ * Applies the build limit of a {@link DetailBudget} to the reruns of the test cases of a build,
+ * in the order they are added.
+ */
+final class BuildDetailLimit {
+
+  static final String BUILD_LIMIT_REACHED = "rerun detail limit of the build reached";
+
+  private long remaining;
+
+  BuildDetailLimit(DetailBudget budget) {
+    remaining = DetailBudget.effective(budget.getBuildLimit());
+  }
+
+  /**
+   * Truncates the details of the given reruns to what is left of the build limit, replacing
+   * the runs which have to be truncated in the list.
+   *
+   * @return the given list
+   */
+  List<FlakyRunInformation> apply(List<FlakyRunInformation> runs) {
+    for (int i = 0; i < runs.size(); i++) {
+      FlakyRunInformation run = runs.get(i);
+      long length = length(run.getFlakyErrorDetails()) + length(run.getFlakyErrorStackTrace())
+          + length(run.flakyStdOut) + length(run.flakyStdErr);
+      if (length <= remaining) {
+        remaining -= length;
+        continue;
+      }
+      runs.set(i, new FlakyRunInformation(charge(run.getFlakyErrorDetails()),
+          charge(run.getFlakyErrorStackTrace()), charge(run.flakyStdOut),
+          charge(run.flakyStdErr)));
+    }
+    return runs;
+  }
+
+  private String charge(String detail) {
+    if (detail == null) {
+      return null;
+    }
+    String kept = DetailBuilder.truncate(detail, (int) remaining, BUILD_LIMIT_REACHED);
+    remaining = Math.max(0, remaining - detail.length());
+    return kept;
+  }
+
+  private static long length(String detail) {
+    return detail == null ? 0 : detail.length();
+  }
+}
@@ -0,0 +1,115 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.junit;
+
+import java.io.Serializable;
+
+/**
+ * Limits on the rerun details (messages, stack traces, stdout and stderr) kept when reading
+ * test reports, so that a chatty test rerun several times doesn't blow up the test data of a
+ * build.
+ *
+ * <p>
+ * Each limit is a number of characters, 0 for no limit:
+ * <ul>
+ *   <li>the run limit applies to each detail of each rerun, which keeps its head and its tail;</li>
+ *   <li>the case limit applies to all the details of the reruns of a test case;</li>
+ *   <li>the build limit applies to all the details of the reruns of a build.</li>
+ * </ul>
+ * Details are truncated while the reports are read, and what is dropped is replaced by a
+ * marker giving the number of characters dropped and the limit which was reached.
+ */
+public final class DetailBudget implements Serializable {
+
+  public static final int DEFAULT_RUN_LIMIT = 64 * 1024;
+
+  public static final int DEFAULT_CASE_LIMIT = 256 * 1024;
+
+  public static final int DEFAULT_BUILD_LIMIT = 16 * 1024 * 1024;
+
+  public static final DetailBudget DEFAULT =
+      new DetailBudget(DEFAULT_RUN_LIMIT, DEFAULT_CASE_LIMIT, DEFAULT_BUILD_LIMIT);
+
+  public static final DetailBudget UNLIMITED = new DetailBudget(0, 0, 0);
+
+  /**
+   * Only counts the reruns of each test case, without reading their details.
+   */
+  static final DetailBudget COUNT_ONLY = new DetailBudget(-1, -1, -1, true);
+
+  private final int runLimit;
+
+  private final int caseLimit;
+
+  private final int buildLimit;
+
+  public DetailBudget(int runLimit, int caseLimit, int buildLimit) {
+    this(runLimit, caseLimit, buildLimit, false);
+  }
+
+  private DetailBudget(int runLimit, int caseLimit, int buildLimit, boolean countOnly) {
+    if (!countOnly && (runLimit < 0 || caseLimit < 0 || buildLimit < 0)) {
+      throw new IllegalArgumentException("Negative detail limit");
+    }
+    this.runLimit = runLimit;
+    this.caseLimit = caseLimit;
+    this.buildLimit = buildLimit;
+  }
+
+  public int getRunLimit() {
+    return runLimit;
+  }
+
+  public int getCaseLimit() {
+    return caseLimit;
+  }
+
+  public int getBuildLimit() {
+    return buildLimit;
+  }
+
+  boolean isCountOnly() {
+    return runLimit < 0;
+  }
+
+  /**
+   * @return the given limit, or {@link Integer#MAX_VALUE} if there is no limit
+   */
+  static int effective(int limit) {
+    return limit == 0 ? Integer.MAX_VALUE : limit;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof DetailBudget)) {
+      return false;
+    }
+    DetailBudget other = (DetailBudget) o;
+    return runLimit == other.runLimit && caseLimit == other.caseLimit
+        && buildLimit == other.buildLimit;
+  }
+
+  @Override
+  public int hashCode() {
+    return (runLimit * 31 + caseLimit) * 31 + buildLimit;
+  }
+
+  @Override
+  public String toString() {
+    return "DetailBudget[run=" + runLimit + ", case=" + caseLimit + ", build=" + buildLimit + "]";
+  }
+
+  private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,129 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.junit;
+
+/**
+ * Builds a rerun detail read in chunks, keeping at most a given number of characters: the head
+ * and the tail of longer details are kept around a truncation marker, without holding the
+ * middle in memory.
+ */
+final class DetailBuilder {
+
+  private final int limit;
+
+  private final String reason;
+
+  /**
+   * The first {@link #limit} characters
+   */
+  private final StringBuilder whole = new StringBuilder();
+
+  /**
+   * Ring buffer of the last characters, only filled once {@link #limit} is exceeded
+   */
+  private char[] tail;
+
+  private long length;
+
+  /**
+   * @param limit maximal number of characters to keep
+   * @param reason the limit which is applied, shown in the truncation marker, or null for the
+   * limit of each detail
+   */
+  DetailBuilder(int limit, String reason) {
+    this.limit = limit;
+    this.reason = reason;
+  }
+
+  DetailBuilder append(char[] chars, int start, int count) {
+    if (length + count <= limit) {
+      whole.append(chars, start, count);
+      length += count;
+      return this;
+    }
+    for (int i = start; i < start + count; i++) {
+      append(chars[i]);
+    }
+    return this;
+  }
+
+  DetailBuilder append(String text) {
+    if (length + text.length() <= limit) {
+      whole.append(text);
+      length += text.length();
+      return this;
+    }
+    for (int i = 0; i < text.length(); i++) {
+      append(text.charAt(i));
+    }
+    return this;
+  }
+
+  private void append(char c) {
+    int half = limit / 2;
+    if (length < limit) {
+      whole.append(c);
+    } else if (tail == null) {
+      // the tail so far is the end of the whole detail
+      tail = new char[half];
+      for (int i = limit - half; i < limit; i++) {
+        tail[i % half] = whole.charAt(i);
+      }
+    }
+    if (tail != null && half > 0) {
+      tail[(int) (length % half)] = c;
+    }
+    length++;
+  }
+
+  /**
+   * @return the number of characters kept, not counting the truncation marker
+   */
+  int getKeptLength() {
+    return length <= limit ? (int) length : (limit / 2) * 2;
+  }
+
+  @Override
+  public String toString() {
+    if (length <= limit) {
+      return whole.toString();
+    }
+    int half = limit / 2;
+    StringBuilder result = new StringBuilder(half * 2 + 64);
+    result.append(whole, 0, half);
+    result.append("\n...[truncated ").append(length - half * 2).append(" chars");
+    if (reason != null) {
+      result.append(", ").append(reason);
+    }
+    result.append("]...\n");
+    if (half > 0) {
+      int tailStart = (int) (length % half);
+      result.append(tail, tailStart, half - tailStart).append(tail, 0, tailStart);
+    }
+    return result.toString();
+  }
+
+  /**
+   * Truncates a detail which is already in memory.
+   *
+   * @return the detail itself if it is not longer than the limit
+   */
+  static String truncate(String detail, int limit, String reason) {
+    if (detail == null || detail.length() <= limit) {
+      return detail;
+    }
+    return new DetailBuilder(limit, reason).append(detail).toString();
+  }
+}
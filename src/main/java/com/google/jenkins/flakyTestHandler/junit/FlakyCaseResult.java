@@ -26,6 +26,9 @@ import org.kohsuke.stapler.export.Exported;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Serializable;
 import java.text.DecimalFormat;
 import java.text.ParseException;
 import java.util.ArrayList;
@@ -33,8 +36,10 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
 import hudson.model.AbstractBuild;
+import hudson.tasks.junit.CaseResult;
 import hudson.tasks.junit.Messages;
 import hudson.tasks.junit.TestAction;
 import hudson.tasks.junit.TestNameTransformer;
@@ -62,7 +67,10 @@ public class FlakyCaseResult extends TestResult implements Comparable<FlakyCaseR
    * This field retains the method name.
    */
   private final String testName;
-  private transient String safeName;
+  /**
+   * Unique among the cases of the class, set when the tree of the test result is built
+   */
+  private transient volatile String safeName;
   private final boolean skipped;
   private final String skippedMessage;
   private final String errorStackTrace;
@@ -107,8 +115,8 @@ public class FlakyCaseResult extends TestResult implements Comparable<FlakyCaseR
       nameAttr = nameAttr.substring(nameAttr.lastIndexOf('.')+1);
     }
 
-    className = testClassName;
-    testName = nameAttr;
+    className = Names.intern(testClassName);
+    testName = Names.intern(nameAttr);
     errorStackTrace = getError(testCase);
     errorDetails = getErrorMessage(testCase);
     this.parent = parent;
@@ -125,6 +133,31 @@ public class FlakyCaseResult extends TestResult implements Comparable<FlakyCaseR
     flakyRuns = getFlakyRunInformation(flakyElements);
   }
 
+  /**
+   * Builds a {@link FlakyCaseResult} from a {@link CaseResult} already parsed by the core JUnit
+   * archiver, so that the report does not have to be parsed again.
+   *
+   * @param flakyRuns the reruns of this test case found by {@link RerunScanner}
+   */
+  FlakyCaseResult(FlakySuiteResult parent, CaseResult caseResult,
+      List<FlakyRunInformation> flakyRuns) {
+    this.parent = parent;
+    className = Names.intern(caseResult.getClassName());
+    testName = Names.intern(caseResult.getName());
+    errorStackTrace = caseResult.getErrorStackTrace();
+    errorDetails = caseResult.getErrorDetails();
+    duration = caseResult.getDuration();
+    skipped = caseResult.isSkipped();
+    skippedMessage = caseResult.getSkippedMessage();
+    // CaseResult falls back to the stdio of its suite when it has none of its own,
+    // keep sharing the suite's strings instead of holding a copy per case.
+    String caseStdout = caseResult.getStdout();
+    String caseStderr = caseResult.getStderr();
+    stdout = caseStdout == parent.getStdout() ? null : caseStdout;
+    stderr = caseStderr == parent.getStderr() ? null : caseStderr;
+    this.flakyRuns = flakyRuns;
+  }
+
   private static final int HALF_MAX_SIZE = 500;
   static String possiblyTrimStdio(Collection<FlakyCaseResult> results, boolean keepLongStdio, String stdio) { // HUDSON-6516
     if (stdio == null) {
@@ -145,6 +178,14 @@ public class FlakyCaseResult extends TestResult implements Comparable<FlakyCaseR
    * Flavor of {@link #possiblyTrimStdio(Collection, boolean, String)} that doesn't try to read the whole thing into memory.
    */
   static String possiblyTrimStdio(Collection<FlakyCaseResult> results, boolean keepLongStdio, File stdio) throws IOException {
+    if (ReportFiles.isCompressed(stdio)) {
+      Reader reader = new InputStreamReader(ReportFiles.open(stdio));
+      try {
+        return possiblyTrimStdio(results, keepLongStdio, reader);
+      } finally {
+        reader.close();
+      }
+    }
     if (!isTrimming(results, keepLongStdio) && stdio.length()<1024*1024) {
       return FileUtils.readFileToString(stdio);
     }
@@ -171,6 +212,42 @@ public class FlakyCaseResult extends TestResult implements Comparable<FlakyCaseR
     return head + "\n...[truncated " + middle + " bytes]...\n" + tail;
   }
 
+  /**
+   * Flavor of {@link #possiblyTrimStdio(Collection, boolean, File)} for stdio which can only be
+   * read once from the start, such as a compressed file. Only keeps the head and the tail in
+   * memory when trimming.
+   */
+  private static String possiblyTrimStdio(Collection<FlakyCaseResult> results, boolean keepLongStdio, Reader stdio) throws IOException {
+    // same limits as for uncompressed files
+    int maxWholeLength = isTrimming(results, keepLongStdio) ? HALF_MAX_SIZE * 2 : 1024 * 1024;
+    StringBuilder whole = new StringBuilder();
+    StringBuilder head = new StringBuilder(HALF_MAX_SIZE);
+    char[] tail = new char[HALF_MAX_SIZE];
+    long len = 0;
+
+    char[] buffer = new char[8192];
+    int read;
+    while ((read = stdio.read(buffer)) != -1) {
+      for (int i = 0; i < read; i++, len++) {
+        char c = buffer[i];
+        if (len < maxWholeLength) {
+          whole.append(c);
+        }
+        if (len < HALF_MAX_SIZE) {
+          head.append(c);
+        }
+        tail[(int) (len % HALF_MAX_SIZE)] = c;
+      }
+    }
+
+    if (len <= maxWholeLength) {
+      return whole.toString();
+    }
+    int tailStart = (int) (len % HALF_MAX_SIZE);
+    return head + "\n...[truncated " + (len - HALF_MAX_SIZE * 2) + " chars]...\n"
+        + new String(tail, tailStart, HALF_MAX_SIZE - tailStart) + new String(tail, 0, tailStart);
+  }
+
   private static boolean isTrimming(Collection<FlakyCaseResult> results, boolean keepLongStdio) {
     if (keepLongStdio)      return false;
     for (FlakyCaseResult result : results) {
@@ -221,7 +298,7 @@ public class FlakyCaseResult extends TestResult implements Comparable<FlakyCaseR
    */
   public FlakyCaseResult(FlakySuiteResult parent, String testName, String errorStackTrace) {
     this.className = parent == null ? "unnamed" : parent.getName();
-    this.testName = testName;
+    this.testName = Names.intern(testName);
     this.errorStackTrace = errorStackTrace;
     this.errorDetails = "";
     this.parent = parent;
@@ -314,18 +391,32 @@ public class FlakyCaseResult extends TestResult implements Comparable<FlakyCaseR
   /**
    * Gets the version of {@link #getName()} that's URL-safe.
    */
-  public @Override synchronized String getSafeName() {
-    if (safeName != null) {
-      return safeName;
+  public @Override String getSafeName() {
+    String name = safeName;
+    if (name == null && classResult != null) {
+      // e.g. loaded from disk without its tree being built
+      classResult.assignSafeNames();
+      name = safeName;
     }
+    return name != null ? name : getSafeBaseName();
+  }
+
+  /**
+   * @return {@link #getName()} with the characters which are not URL-safe replaced,
+   * before making it unique among the cases of the class
+   */
+  String getSafeBaseName() {
     StringBuilder buf = new StringBuilder(testName);
     for( int i=0; i<buf.length(); i++ ) {
       char ch = buf.charAt(i);
       if(!Character.isJavaIdentifierPart(ch))
         buf.setCharAt(i,'_');
     }
-    Collection<FlakyCaseResult> siblings = (classResult ==null ? Collections.<FlakyCaseResult>emptyList(): classResult.getChildren());
-    return safeName = uniquifyName(siblings, buf.toString());
+    return buf.toString();
+  }
+
+  void setSafeName(String safeName) {
+    this.safeName = safeName;
   }
 
   /**
@@ -546,8 +637,12 @@ public class FlakyCaseResult extends TestResult implements Comparable<FlakyCaseR
     this.parent = parent;
   }
 
+  /**
+   * @deprecated cases have nothing to freeze, use {@link #setParentSuiteResult(FlakySuiteResult)}
+   */
+  @Deprecated
   public void freeze(FlakySuiteResult parent) {
-    this.parent = parent;
+    setParentSuiteResult(parent);
   }
 
   public int compareTo(FlakyCaseResult that) {
@@ -633,39 +728,212 @@ public class FlakyCaseResult extends TestResult implements Comparable<FlakyCaseR
     }
   }
 
-  public static class FlakyRunInformation {
+  public static class FlakyRunInformation implements Serializable {
 
     public FlakyRunInformation(String flakyErrorDetails, String flakyErrorStackTrace,
         String flakyStdOut, String flakyStdErr) {
-      this.flakyErrorDetails = flakyErrorDetails;
-      this.flakyErrorStackTrace = flakyErrorStackTrace;
+      this.failure = new RunFailure(flakyErrorDetails, flakyErrorStackTrace);
+      this.flakyErrorDetails = null;
+      this.flakyErrorStackTrace = null;
       this.flakyStdOut = flakyStdOut;
       this.flakyStdErr = flakyStdErr;
     }
 
+    /**
+     * Error message and stack trace of this run, possibly shared with the other runs of the build
+     * which failed the same way. Null for runs persisted before failures were shared, whose
+     * details are in {@link #flakyErrorDetails} and {@link #flakyErrorStackTrace}.
+     */
+    private RunFailure failure;
+
     final String flakyErrorDetails;
 
     final String flakyErrorStackTrace;
 
-    final String flakyStdOut;
+    /**
+     * Stdout of this run, or null once stored in the {@link RunStdioFile} of the build.
+     */
+    String flakyStdOut;
+
+    /**
+     * Stderr of this run, or null once stored in the {@link RunStdioFile} of the build.
+     */
+    String flakyStdErr;
 
-    final String flakyStdErr;
+    /**
+     * Byte offsets and lengths of the stdout and stderr of this run in the
+     * {@link RunStdioFile} of the build, lengths are 0 if they are not stored there.
+     */
+    private long flakyStdOutOffset, flakyStdErrOffset;
+    private int flakyStdOutLength, flakyStdErrLength;
 
     public String getFlakyErrorDetails() {
-      return flakyErrorDetails;
+      return failure == null ? flakyErrorDetails : failure.details;
     }
 
     public String getFlakyErrorStackTrace() {
-      return flakyErrorStackTrace;
+      return failure == null ? flakyErrorStackTrace : failure.stackTrace;
     }
 
+    /**
+     * @return the stdout of this run, or null once it has been stored in the
+     * {@link RunStdioFile} of the build
+     * @deprecated returns null for the runs of published results, use
+     * {@link #getFlakyStdOut(File)} with the stdio file of the build
+     */
+    @Deprecated
     public String getFlakyStdOut() {
       return flakyStdOut;
     }
 
+    /**
+     * @return the stderr of this run, or null once it has been stored in the
+     * {@link RunStdioFile} of the build
+     * @deprecated returns null for the runs of published results, use
+     * {@link #getFlakyStdErr(File)} with the stdio file of the build
+     */
+    @Deprecated
     public String getFlakyStdErr() {
       return flakyStdErr;
     }
+
+    /**
+     * @param stdioFile the {@link RunStdioFile} of the build this run belongs to
+     * @return the stdout of this run, read from the stdio file if it has been stored there
+     */
+    public String getFlakyStdOut(File stdioFile) throws IOException {
+      if (flakyStdOut != null || flakyStdOutLength == 0 || stdioFile == null) {
+        return flakyStdOut;
+      }
+      return RunStdioFile.read(stdioFile, flakyStdOutOffset, flakyStdOutLength);
+    }
+
+    /**
+     * @param stdioFile the {@link RunStdioFile} of the build this run belongs to
+     * @return the stderr of this run, read from the stdio file if it has been stored there
+     */
+    public String getFlakyStdErr(File stdioFile) throws IOException {
+      if (flakyStdErr != null || flakyStdErrLength == 0 || stdioFile == null) {
+        return flakyStdErr;
+      }
+      return RunStdioFile.read(stdioFile, flakyStdErrOffset, flakyStdErrLength);
+    }
+
+    /**
+     * Copies this run, sharing its failure, so that storing the stdio or sharing the failure of
+     * the copy leaves this run intact.
+     */
+    FlakyRunInformation copy() {
+      FlakyRunInformation copy = new FlakyRunInformation(getFlakyErrorDetails(),
+          getFlakyErrorStackTrace(), flakyStdOut, flakyStdErr);
+      if (failure != null) {
+        copy.failure = failure;
+      }
+      copy.flakyStdOutOffset = flakyStdOutOffset;
+      copy.flakyStdOutLength = flakyStdOutLength;
+      copy.flakyStdErrOffset = flakyStdErrOffset;
+      copy.flakyStdErrLength = flakyStdErrLength;
+      return copy;
+    }
+
+    /**
+     * Moves the stdout and stderr of this run to a stdio file, keeping only their position.
+     */
+    void storeStdio(RunStdioFile.Writer writer) throws IOException {
+      if (flakyStdOut != null) {
+        flakyStdOutOffset = writer.getOffset();
+        flakyStdOutLength = writer.write(flakyStdOut);
+        flakyStdOut = null;
+      }
+      if (flakyStdErr != null) {
+        flakyStdErrOffset = writer.getOffset();
+        flakyStdErrLength = writer.write(flakyStdErr);
+        flakyStdErr = null;
+      }
+    }
+
+    /**
+     * @return the fingerprint of the failure of this run, see {@link RunFailure#getFingerprint()}
+     */
+    public String getFailureFingerprint() {
+      return failure == null ? RunFailure.fingerprint(flakyErrorDetails, flakyErrorStackTrace)
+          : failure.getFingerprint();
+    }
+
+    /**
+     * Whether this run failed the same way as another one, ignoring line numbers, addresses and
+     * timestamps. Constant time for runs whose failures are shared through the same
+     * {@link RunFailureTable}.
+     */
+    public boolean isSameFailure(FlakyRunInformation other) {
+      if (failure != null && failure == other.failure) {
+        return true;
+      }
+      return getFailureFingerprint().equals(other.getFailureFingerprint());
+    }
+
+    /**
+     * Replaces the failure of this run by the one already in the table with exactly the same
+     * message and stack trace, if any.
+     */
+    void shareFailure(RunFailureTable table) {
+      if (failure != null) {
+        failure = table.share(failure);
+      }
+    }
+
+    private static final long serialVersionUID = 1L;
+  }
+
+  /**
+   * Error message and stack trace of a failed run.
+   */
+  public static final class RunFailure implements Serializable {
+
+    private static final Pattern LINE_NUMBER = Pattern.compile(":\\d+\\)");
+
+    private static final Pattern ADDRESS = Pattern.compile("(@|0x)[0-9a-fA-F]{4,}");
+
+    private static final Pattern TIMESTAMP = Pattern.compile(
+        "\\d{4}-\\d{2}-\\d{2}([T ]\\d{2}:\\d{2}:\\d{2}([.,]\\d+)?)?|\\d{2}:\\d{2}:\\d{2}([.,]\\d+)?");
+
+    final String details;
+
+    final String stackTrace;
+
+    private transient String fingerprint;
+
+    RunFailure(String details, String stackTrace) {
+      this.details = details;
+      this.stackTrace = stackTrace;
+    }
+
+    /**
+     * The message and stack trace with line numbers, hexadecimal addresses (such as identity
+     * hash codes) and timestamps removed, so that reruns which failed the same way have the
+     * same fingerprint.
+     */
+    public synchronized String getFingerprint() {
+      if (fingerprint == null) {
+        fingerprint = fingerprint(details, stackTrace);
+      }
+      return fingerprint;
+    }
+
+    static String fingerprint(String details, String stackTrace) {
+      return normalize(details) + '\n' + normalize(stackTrace);
+    }
+
+    private static String normalize(String text) {
+      if (text == null) {
+        return "";
+      }
+      text = LINE_NUMBER.matcher(text).replaceAll(")");
+      text = ADDRESS.matcher(text).replaceAll("$1");
+      return TIMESTAMP.matcher(text).replaceAll("");
+    }
+
+    private static final long serialVersionUID = 1L;
   }
 
   private static final long serialVersionUID = 1L;
@@ -22,7 +22,9 @@ import org.kohsuke.stapler.export.Exported;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import hudson.model.AbstractBuild;
 import hudson.tasks.junit.Messages;
@@ -44,9 +46,16 @@ public final class FlakyClassResult extends TabulatedResult implements
     Comparable<FlakyClassResult> , ActionableFlakyTestObject {
 
   private final String className; // simple name
-  private transient String safeName;
+  /**
+   * Unique among the classes of the package, set when the tree of the test result is built
+   */
+  private transient volatile String safeName;
 
   private final List<FlakyCaseResult> cases = new ArrayList<FlakyCaseResult>();
+  /**
+   * Cases keyed by their safe name, built together with the safe names
+   */
+  private transient volatile Map<String,FlakyCaseResult> casesBySafeName;
 
   private int passCount, failCount, skipCount, flakeCount;
 
@@ -56,7 +65,7 @@ public final class FlakyClassResult extends TabulatedResult implements
 
   FlakyClassResult(FlakyPackageResult parent, String className) {
     this.parent = parent;
-    this.className = className;
+    this.className = Names.intern(className);
   }
 
   @Override
@@ -122,20 +131,49 @@ public final class FlakyClassResult extends TabulatedResult implements
 
   public
   @Override
-  synchronized String getSafeName() {
-    if (safeName != null) {
-      return safeName;
+  String getSafeName() {
+    String name = safeName;
+    if (name == null) {
+      // e.g. loaded from disk without its tree being built
+      parent.assignSafeNames();
+      name = safeName;
     }
-    return safeName = uniquifyName(parent.getChildren(), safe(getName()));
+    return name != null ? name : safe(getName());
   }
 
-  public FlakyCaseResult getCaseResult(String name) {
+  void setSafeName(String safeName) {
+    this.safeName = safeName;
+  }
+
+  /**
+   * Gives each case a name unique among the cases of this class.
+   *
+   * @return the cases keyed by their safe name
+   */
+  Map<String,FlakyCaseResult> assignSafeNames() {
+    List<String> baseNames = new ArrayList<String>(cases.size());
     for (FlakyCaseResult c : cases) {
-      if (c.getSafeName().equals(name)) {
-        return c;
-      }
+      baseNames.add(c.getSafeBaseName());
     }
-    return null;
+    String[] names = SafeNames.uniquify(baseNames);
+    Map<String,FlakyCaseResult> bySafeName = new HashMap<String,FlakyCaseResult>(
+        names.length * 4 / 3 + 1);
+    for (int i = 0; i < names.length; i++) {
+      FlakyCaseResult c = cases.get(i);
+      c.setSafeName(names[i]);
+      bySafeName.put(names[i], c);
+    }
+    casesBySafeName = bySafeName;
+    return bySafeName;
+  }
+
+  public FlakyCaseResult getCaseResult(String name) {
+    Map<String,FlakyCaseResult> bySafeName = casesBySafeName;
+    if (bySafeName == null) {
+      // e.g. loaded from disk without its tree being built
+      bySafeName = assignSafeNames();
+    }
+    return bySafeName.get(name);
   }
 
   @Override
@@ -185,6 +223,7 @@ public final class FlakyClassResult extends TabulatedResult implements
 
   public void add(FlakyCaseResult r) {
     cases.add(r);
+    casesBySafeName = null;
   }
 
   /**
@@ -192,25 +231,13 @@ public final class FlakyClassResult extends TabulatedResult implements
    */
   @Override
   public void tally() {
-    passCount = failCount = skipCount = flakeCount = 0;
-    duration = 0;
-    for (FlakyCaseResult r : cases) {
-      r.setClass(this);
-      if (r.isSkipped()) {
-        skipCount++;
-      } else if (r.isFlaked()) {
-        flakeCount++;
-      } else if (r.isPassed()) {
-        passCount++;
-      } else {
-        failCount++;
-      }
-      duration += r.getDuration();
-    }
+    count(false);
   }
 
-
-  void freeze() {
+  /**
+   * @param freeze whether to also sort the cases
+   */
+  void count(boolean freeze) {
     passCount = failCount = skipCount = flakeCount = 0;
     duration = 0;
     for (FlakyCaseResult r : cases) {
@@ -226,7 +253,10 @@ public final class FlakyClassResult extends TabulatedResult implements
       }
       duration += r.getDuration();
     }
-    Collections.sort(cases);
+    if (freeze) {
+      Collections.sort(cases);
+    }
+    assignSafeNames();
   }
 
   public String getClassName() {
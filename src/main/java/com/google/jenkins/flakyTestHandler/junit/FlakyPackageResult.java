@@ -42,17 +42,24 @@ import hudson.tasks.test.TestResult;
 public final class FlakyPackageResult extends MetaTabulatedResult implements Comparable<FlakyPackageResult> {
 
   private final String packageName;
-  private transient String safeName;
+  /**
+   * Unique among the packages of the test result, set when its tree is built
+   */
+  private transient volatile String safeName;
   /**
    * All {@link FlakyClassResult}s keyed by their short name.
    */
   private final Map<String,FlakyClassResult> classes = new TreeMap<String,FlakyClassResult>();
   private int passCount,failCount,skipCount,flakeCount;
+  /**
+   * Cases of each status, computed when the package is counted
+   */
+  private transient volatile Partitions partitions;
   private final FlakyTestResult parent;
   private float duration;
 
   FlakyPackageResult(FlakyTestResult parent, String packageName) {
-    this.packageName = packageName;
+    this.packageName = Names.intern(packageName);
     this.parent = parent;
   }
 
@@ -71,14 +78,33 @@ public final class FlakyPackageResult extends MetaTabulatedResult implements Com
   }
 
   @Override
-  public synchronized String getSafeName() {
-    if (safeName != null) {
-      return safeName;
+  public String getSafeName() {
+    String name = safeName;
+    if (name == null && parent != null) {
+      // e.g. loaded from disk without its tree being built
+      parent.assignSafeNames();
+      name = safeName;
+    }
+    return name != null ? name : safe(getName());
+  }
+
+  void setSafeName(String safeName) {
+    this.safeName = safeName;
+  }
+
+  /**
+   * Gives each class a name unique among the classes of this package.
+   */
+  void assignSafeNames() {
+    List<String> baseNames = new ArrayList<String>(classes.size());
+    for (FlakyClassResult c : classes.values()) {
+      baseNames.add(safe(c.getName()));
+    }
+    String[] names = SafeNames.uniquify(baseNames);
+    int i = 0;
+    for (FlakyClassResult c : classes.values()) {
+      c.setSafeName(names[i++]);
     }
-    Collection<FlakyPackageResult> siblings = (parent == null ? Collections.EMPTY_LIST : parent.getChildren());
-    return safeName = uniquifyName(
-        siblings,
-        safe(getName()));
   }
 
   @Override
@@ -187,15 +213,7 @@ public final class FlakyPackageResult extends MetaTabulatedResult implements Com
    * sort order
    */
   public List<FlakyCaseResult> getFailedTests() {
-    List<FlakyCaseResult> r = new ArrayList<FlakyCaseResult>();
-    for (FlakyClassResult clr : classes.values()) {
-      for (FlakyCaseResult cr : clr.getChildren()) {
-        if (cr.isFailed()) {
-          r.add(cr);
-        }
-      }
-    }
-    return r;
+    return partitions().failed;
   }
 
   /**
@@ -205,15 +223,7 @@ public final class FlakyPackageResult extends MetaTabulatedResult implements Com
    */
   @Override
   public Collection<? extends hudson.tasks.test.TestResult> getPassedTests() {
-    List<FlakyCaseResult> r = new ArrayList<FlakyCaseResult>();
-    for (FlakyClassResult clr : classes.values()) {
-      for (FlakyCaseResult cr : clr.getChildren()) {
-        if (cr.isPassed() && !cr.isFlaked()) {
-          r.add(cr);
-        }
-      }
-    }
-    return r;
+    return partitions().passed;
   }
 
   /**
@@ -223,15 +233,7 @@ public final class FlakyPackageResult extends MetaTabulatedResult implements Com
    */
   @Override
   public Collection<? extends TestResult> getSkippedTests() {
-    List<FlakyCaseResult> r = new ArrayList<FlakyCaseResult>();
-    for (FlakyClassResult clr : classes.values()) {
-      for (FlakyCaseResult cr : clr.getChildren()) {
-        if (cr.isSkipped()) {
-          r.add(cr);
-        }
-      }
-    }
-    return r;
+    return partitions().skipped;
   }
 
   /**
@@ -240,15 +242,16 @@ public final class FlakyPackageResult extends MetaTabulatedResult implements Com
    * @return the children of this test result, if any, or an empty list
    */
   public List<FlakyCaseResult> getFlakyTests() {
-    List<FlakyCaseResult> r = new ArrayList<FlakyCaseResult>();
-    for (FlakyClassResult clr : classes.values()) {
-      for (FlakyCaseResult cr : clr.getChildren()) {
-        if (cr.isFlaked()) {
-          r.add(cr);
-        }
-      }
+    return partitions().flaky;
+  }
+
+  private Partitions partitions() {
+    Partitions p = partitions;
+    if (p == null) {
+      // not counted since the last case was added
+      partitions = p = new Partitions(classes.values());
     }
-    return r;
+    return p;
   }
 
   /**
@@ -267,6 +270,7 @@ public final class FlakyPackageResult extends MetaTabulatedResult implements Com
     }
     c.add(r);
     duration += r.getDuration();
+    partitions = null;
   }
 
   /**
@@ -274,31 +278,25 @@ public final class FlakyPackageResult extends MetaTabulatedResult implements Com
    */
   @Override
   public void tally() {
-    passCount = 0;
-    failCount = 0;
-    skipCount = 0;
-    flakeCount = 0;
-    duration = 0;
-
-    for (FlakyClassResult cr : classes.values()) {
-      cr.tally();
-      passCount += cr.getPassCount();
-      failCount += cr.getFailCount();
-      skipCount += cr.getSkipCount();
-      flakeCount += cr.getFlakeCount();
-      duration += cr.getDuration();
-    }
+    count(false);
   }
 
-  void freeze() {
+  /**
+   * @param freeze whether to also sort the cases of each class
+   */
+  void count(boolean freeze) {
     passCount = failCount = skipCount = flakeCount = 0;
+    duration = 0;
     for (FlakyClassResult cr : classes.values()) {
-      cr.freeze();
+      cr.count(freeze);
       passCount += cr.getPassCount();
       failCount += cr.getFailCount();
-      flakeCount += cr.getFlakeCount();
       skipCount += cr.getSkipCount();
+      flakeCount += cr.getFlakeCount();
+      duration += cr.getDuration();
     }
+    partitions = new Partitions(classes.values());
+    assignSafeNames();
   }
 
   public int compareTo(FlakyPackageResult that) {
@@ -308,4 +306,47 @@ public final class FlakyPackageResult extends MetaTabulatedResult implements Com
   public String getDisplayName() {
     return TestNameTransformer.getTransformedName(packageName);
   }
+
+  /**
+   * Immutable lists of the cases of the package with each status, in the order of their classes
+   */
+  private static final class Partitions {
+    final List<FlakyCaseResult> failed;
+    final List<FlakyCaseResult> passed;
+    final List<FlakyCaseResult> skipped;
+    final List<FlakyCaseResult> flaky;
+
+    Partitions(Collection<FlakyClassResult> classes) {
+      ArrayList<FlakyCaseResult> failed = new ArrayList<FlakyCaseResult>();
+      ArrayList<FlakyCaseResult> passed = new ArrayList<FlakyCaseResult>();
+      ArrayList<FlakyCaseResult> skipped = new ArrayList<FlakyCaseResult>();
+      ArrayList<FlakyCaseResult> flaky = new ArrayList<FlakyCaseResult>();
+      for (FlakyClassResult clr : classes) {
+        for (FlakyCaseResult cr : clr.getChildren()) {
+          // the statuses are exclusive
+          if (cr.isSkipped()) {
+            skipped.add(cr);
+          } else if (cr.isFlaked()) {
+            flaky.add(cr);
+          } else if (cr.isPassed()) {
+            passed.add(cr);
+          } else {
+            failed.add(cr);
+          }
+        }
+      }
+      this.failed = freeze(failed);
+      this.passed = freeze(passed);
+      this.skipped = freeze(skipped);
+      this.flaky = freeze(flaky);
+    }
+
+    private static List<FlakyCaseResult> freeze(ArrayList<FlakyCaseResult> cases) {
+      if (cases.isEmpty()) {
+        return Collections.emptyList();
+      }
+      cases.trimToSize();
+      return Collections.unmodifiableList(cases);
+    }
+  }
 }
@@ -0,0 +1,158 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.junit;
+
+import com.google.jenkins.flakyTestHandler.plugin.HistoryAggregatedFlakyTestResultAction.SingleTestFlakyStats;
+import com.google.jenkins.flakyTestHandler.plugin.HistoryAggregatedFlakyTestResultAction.SingleTestFlakyStatsWithRevision;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import hudson.FilePath;
+import hudson.tasks.junit.CaseResult;
+import hudson.tasks.junit.SuiteResult;
+import hudson.tasks.junit.TestNameTransformer;
+import hudson.tasks.junit.TestResult;
+
+/**
+ * Computes the same flaky stats as {@link FlakyTestResult#getTestFlakyStatsMap()} without
+ * building a {@link FlakyTestResult}.
+ *
+ * <p>
+ * Test names and statuses are taken from the {@link CaseResult}s already parsed by the core
+ * JUnit archiver, and report files are only scanned to count the reruns of each test case;
+ * no stdio, stack traces or package/class hierarchy are kept.
+ */
+public final class FlakyStatsExtractor {
+
+  private FlakyStatsExtractor() {
+  }
+
+  /**
+   * Get the flaky stats of all the tests of a test result
+   *
+   * @param testResult test result published by the core JUnit archiver
+   * @param revision the revision of the build, shared by the stats of all the tests
+   * @param parseThreads number of threads to read report files with
+   * @param workspace workspace of the build, or null to read report files on the master
+   * @param stats statistics to count the report files read in
+   * @return the flaky stats of each test, keyed by full display name
+   */
+  public static Map<String, SingleTestFlakyStatsWithRevision> extract(TestResult testResult,
+      String revision, int parseThreads, FilePath workspace, ReportScanStats stats) {
+    return extract(testResult, revision, parseThreads, workspace, stats, null);
+  }
+
+  /**
+   * Get the flaky stats of all the tests of a test result, whose suites may have been merged
+   * from several report files
+   *
+   * @param testResult test result published by the core JUnit archiver
+   * @param revision the revision of the build, shared by the stats of all the tests
+   * @param parseThreads number of threads to read report files with
+   * @param workspace workspace of the build, or null to read report files on the master
+   * @param stats statistics to count the report files read in
+   * @param lister lists all the report files parsed by the core JUnit archiver where they are
+   * scanned, null if they are not known
+   * @return the flaky stats of each test, keyed by full display name
+   */
+  public static Map<String, SingleTestFlakyStatsWithRevision> extract(TestResult testResult,
+      String revision, int parseThreads, FilePath workspace, ReportScanStats stats,
+      ReportFileLister lister) {
+    RerunSummary summary = FlakyTestResult.readReruns(testResult, lister, parseThreads,
+        workspace, DetailBudget.COUNT_ONLY, stats);
+
+    int caseCount = 0;
+    for (SuiteResult suiteResult : testResult.getSuites()) {
+      caseCount += suiteResult.getCases().size();
+    }
+
+    // Number of reruns of each test case, -1 for the ones which have been skipped
+    int[] reruns = new int[caseCount];
+    int i = 0;
+    for (SuiteResult suiteResult : testResult.getSuites()) {
+      for (CaseResult caseResult : suiteResult.getCases()) {
+        if (caseResult.isSkipped()) {
+          reruns[i++] = -1;
+        } else {
+          reruns[i++] = summary.poll(suiteResult.getName(), caseResult.getClassName(),
+              caseResult.getName()).size();
+        }
+      }
+    }
+
+    // Same precedence as FlakyTestResult#getTestFlakyStatsMap() for tests with the same name:
+    // flaky tests win over failing tests, which win over passing tests.
+    Map<String, SingleTestFlakyStatsWithRevision> testFlakyStatsWithRevisionMap =
+        new HashMap<String, SingleTestFlakyStatsWithRevision>();
+    for (Status status : Status.values()) {
+      i = 0;
+      for (SuiteResult suiteResult : testResult.getSuites()) {
+        for (CaseResult caseResult : suiteResult.getCases()) {
+          int rerunCount = reruns[i++];
+          if (rerunCount >= 0 && status == Status.of(caseResult, rerunCount)) {
+            testFlakyStatsWithRevisionMap.put(getFullDisplayName(caseResult),
+                new SingleTestFlakyStatsWithRevision(status.stats(rerunCount), revision));
+          }
+        }
+      }
+    }
+    return testFlakyStatsWithRevisionMap;
+  }
+
+  /**
+   * Same as {@link FlakyCaseResult#getFullDisplayName()}
+   */
+  private static String getFullDisplayName(CaseResult caseResult) {
+    return Names.intern(TestNameTransformer.getTransformedName(
+        caseResult.getClassName() + '.' + caseResult.getName()));
+  }
+
+  /**
+   * Status of a test which was not skipped, in increasing order of precedence
+   */
+  private enum Status {
+    PASSED {
+      @Override
+      SingleTestFlakyStats stats(int rerunCount) {
+        return new SingleTestFlakyStats(1, 0, 0);
+      }
+    },
+    FAILED {
+      @Override
+      SingleTestFlakyStats stats(int rerunCount) {
+        return new SingleTestFlakyStats(0, 1 + rerunCount, 0);
+      }
+    },
+    FLAKED {
+      @Override
+      SingleTestFlakyStats stats(int rerunCount) {
+        return new SingleTestFlakyStats(1, rerunCount, 0);
+      }
+    };
+
+    abstract SingleTestFlakyStats stats(int rerunCount);
+
+    /**
+     * Same as {@link FlakyCaseResult#isPassed()} and {@link FlakyCaseResult#isFlaked()}
+     */
+    static Status of(CaseResult caseResult, int rerunCount) {
+      if (caseResult.getErrorStackTrace() != null) {
+        return FAILED;
+      }
+      return rerunCount > 0 ? FLAKED : PASSED;
+    }
+  }
+}
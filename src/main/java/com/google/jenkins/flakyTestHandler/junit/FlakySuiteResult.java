@@ -23,6 +23,7 @@ import org.kohsuke.stapler.export.ExportedBean;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -34,6 +35,7 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import hudson.tasks.junit.CaseResult;
+import hudson.tasks.junit.SuiteResult;
 import hudson.tasks.test.TestObject;
 import hudson.util.io.ParserConfigurator;
 
@@ -68,12 +70,25 @@ public final class FlakySuiteResult implements Serializable {
   private transient FlakyTestResult parent;
 
   FlakySuiteResult(String name, String stdout, String stderr) {
-    this.name = name;
+    this.name = Names.intern(name);
     this.stderr = stderr;
     this.stdout = stdout;
     this.file = null;
   }
 
+  /**
+   * Copies the suite level information of a {@link SuiteResult} already parsed by the core
+   * JUnit archiver. Test cases are added with {@link #addCase(FlakyCaseResult)}.
+   */
+  FlakySuiteResult(SuiteResult suiteResult) {
+    this.file = suiteResult.getFile();
+    this.name = Names.intern(suiteResult.getName());
+    this.stdout = suiteResult.getStdout();
+    this.stderr = suiteResult.getStderr();
+    this.timestamp = suiteResult.getTimestamp();
+    this.id = suiteResult.getId();
+  }
+
   private synchronized Map<String,FlakyCaseResult> casesByName() {
     if (casesByName == null) {
       casesByName = new HashMap<String,FlakyCaseResult>();
@@ -100,6 +115,7 @@ public final class FlakySuiteResult implements Serializable {
    * Parses the JUnit XML file into {@link FlakySuiteResult}s.
    * This method returns a collection, as a single XML may have multiple &lt;testsuite>
    * elements wrapped into the top-level &lt;testsuites>.
+   * Reports ending with {@code .gz} are decompressed while being read.
    */
   static List<FlakySuiteResult> parse(File xmlReport, boolean keepLongStdio) throws DocumentException, IOException, InterruptedException {
     List<FlakySuiteResult> r = new ArrayList<FlakySuiteResult>();
@@ -108,7 +124,13 @@ public final class FlakySuiteResult implements Serializable {
     SAXReader saxReader = new SAXReader();
     ParserConfigurator.applyConfiguration(saxReader,new SuiteResultParserConfigurationContext(xmlReport));
 
-    Document result = saxReader.read(xmlReport);
+    Document result;
+    InputStream in = ReportFiles.open(xmlReport);
+    try {
+      result = saxReader.read(in, xmlReport.getAbsolutePath());
+    } finally {
+      in.close();
+    }
     Element root = result.getRootElement();
 
     parseSuite(xmlReport,keepLongStdio,r,root);
@@ -146,7 +168,7 @@ public final class FlakySuiteResult implements Serializable {
       String pkg = suite.attributeValue("package");
       if(pkg!=null&& pkg.length()>0)   name=pkg+'.'+name;
     }
-    this.name = TestObject.safe(name);
+    this.name = Names.intern(TestObject.safe(name));
     this.timestamp = suite.attributeValue("timestamp");
     this.id = suite.attributeValue("id");
 
@@ -187,8 +209,12 @@ public final class FlakySuiteResult implements Serializable {
       // Surefire never puts stdout/stderr in the XML. Instead, it goes to a separate file (when ${maven.test.redirectTestOutputToFile}).
       Matcher m = SUREFIRE_FILENAME.matcher(xmlReport.getName());
       if (m.matches()) {
-        // look for ***-output.txt from TEST-***.xml
+        // look for ***-output.txt from TEST-***.xml, or ***-output.txt.gz from TEST-***.xml.gz
         File mavenOutputFile = new File(xmlReport.getParentFile(),m.group(1)+"-output.txt");
+        if (!mavenOutputFile.exists() && ReportFiles.isCompressed(xmlReport)) {
+          mavenOutputFile = new File(xmlReport.getParentFile(),
+              m.group(1)+"-output.txt"+ReportFiles.GZIP_SUFFIX);
+        }
         if (mavenOutputFile.exists()) {
           try {
             stdout = FlakyCaseResult.possiblyTrimStdio(cases, keepLongStdio, mavenOutputFile);
@@ -297,27 +323,16 @@ public final class FlakySuiteResult implements Serializable {
     return result;
   }
 
-  /** KLUGE. We have to call this to prevent freeze()
-   * from calling c.freeze() on all its children,
-   * because that in turn calls c.getOwner(),
-   * which requires a non-null parent.
+  /**
+   * Sets the test result this suite belongs to, which sets the parent of the cases itself
+   * while building its tree of packages and classes.
    * @param parent
    */
   void setParent(FlakyTestResult parent) {
     this.parent = parent;
   }
 
-  /*package*/ boolean freeze(FlakyTestResult owner) {
-    if(this.parent!=null)
-      return false;   // already frozen
-
-    this.parent = owner;
-    for (FlakyCaseResult c : cases)
-      c.freeze(this);
-    return true;
-  }
-
   private static final long serialVersionUID = 1L;
 
-  private static final Pattern SUREFIRE_FILENAME = Pattern.compile("TEST-(.+)\\.xml");
+  private static final Pattern SUREFIRE_FILENAME = Pattern.compile("TEST-(.+)\\.xml(?:\\.gz)?");
 }
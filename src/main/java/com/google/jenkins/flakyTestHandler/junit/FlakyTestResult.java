@@ -14,6 +14,7 @@
  */
 package com.google.jenkins.flakyTestHandler.junit;
 
+import com.google.jenkins.flakyTestHandler.junit.FlakyCaseResult.FlakyRunInformation;
 import com.google.jenkins.flakyTestHandler.plugin.HistoryAggregatedFlakyTestResultAction.SingleTestFlakyStats;
 import com.google.jenkins.flakyTestHandler.plugin.HistoryAggregatedFlakyTestResultAction.SingleTestFlakyStatsWithRevision;
 
@@ -25,23 +26,43 @@ import org.kohsuke.stapler.export.Exported;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import hudson.AbortException;
+import hudson.FilePath;
 import hudson.Util;
 import hudson.model.AbstractBuild;
+import hudson.tasks.junit.CaseResult;
 import hudson.tasks.junit.SuiteResult;
 import hudson.tasks.junit.TestResult;
 import hudson.tasks.test.AbstractTestResultAction;
 import hudson.tasks.test.MetaTabulatedResult;
 import hudson.tasks.test.TestObject;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
 
 /**
  * Root of all the test results for one build, including flaky runs information.
@@ -53,6 +74,8 @@ import hudson.tasks.test.TestObject;
  */
 public final class FlakyTestResult extends MetaTabulatedResult {
 
+  private static final Logger LOGGER = Logger.getLogger(FlakyTestResult.class.getName());
+
   /**
    * List of all {@link FlakySuiteResult}s in this test.
    * This is the core data structure to be persisted in the disk.
@@ -64,6 +87,12 @@ public final class FlakyTestResult extends MetaTabulatedResult {
    */
   private transient Map<String,FlakySuiteResult> suitesByName;
 
+  /**
+   * {@link #suites} keyed by their name and id, to find the suite to merge a newly parsed
+   * suite into without scanning all suites.
+   */
+  private transient Map<List<String>,FlakySuiteResult> suitesByNameAndId;
+
   /**
    * Results tabulated by package.
    */
@@ -107,33 +136,271 @@ public final class FlakyTestResult extends MetaTabulatedResult {
    */
   private transient List<FlakyCaseResult> passedTests;
 
+  /**
+   * Number of suites and cases added so far, and when the package and class tree was last built.
+   */
+  private transient int modCount, treeModCount;
+
+  /**
+   * Whether the cases of each class have been sorted when the tree was last built.
+   */
+  private transient boolean frozen;
+
   private final boolean keepLongStdio;
 
+  /**
+   * Number of threads report files are read with. 1 or less reads them on the calling thread.
+   */
+  private transient int parseThreads;
+
+  /**
+   * Report files read to build this result from a core {@link TestResult}.
+   */
+  private transient ReportScanStats reportScanStats = new ReportScanStats();
+
+  /**
+   * Failures of the flaky runs added to this result, so that runs which failed the same way
+   * share a single copy of the message and stack trace.
+   */
+  private transient RunFailureTable runFailures;
+
+  private static final ThreadFactory PARSE_THREAD_FACTORY =
+      new NamingThreadFactory(new DaemonThreadFactory(), "FlakyTestResult.parse");
+
   /**
    * Construct {@link #FlakyTestResult} from {@link #TestResult}
    *
+   * <p>
+   * Suites and cases are taken from the {@link SuiteResult}s already parsed by the core JUnit
+   * archiver; the report files are only scanned again for their rerun elements.
+   *
    * @param testResult
    */
   public FlakyTestResult(TestResult testResult) {
+    this(testResult, 1);
+  }
+
+  /**
+   * Construct {@link #FlakyTestResult} from {@link #TestResult}, scanning report files
+   * for reruns on up to {@code parseThreads} threads.
+   *
+   * @param testResult
+   * @param parseThreads number of threads to read report files with
+   */
+  public FlakyTestResult(TestResult testResult, int parseThreads) {
+    this(testResult, parseThreads, null);
+  }
+
+  /**
+   * Construct {@link #FlakyTestResult} from {@link #TestResult}, scanning report files
+   * for reruns on the node which owns the given workspace, within the
+   * {@link DetailBudget#DEFAULT default} detail budget.
+   *
+   * @param testResult
+   * @param parseThreads number of threads to read report files with
+   * @param workspace workspace of the build, or null to read report files on the master
+   */
+  public FlakyTestResult(TestResult testResult, int parseThreads, FilePath workspace) {
+    this(testResult, parseThreads, workspace, DetailBudget.DEFAULT);
+  }
+
+  /**
+   * Construct {@link #FlakyTestResult} from {@link #TestResult}, scanning report files
+   * for reruns on the node which owns the given workspace.
+   *
+   * <p>
+   * Only a {@link RerunSummary} of the test cases which have been rerun, with their details
+   * truncated to the run and case limits of the budget, is sent back to the master.
+   *
+   * @param testResult
+   * @param parseThreads number of threads to read report files with
+   * @param workspace workspace of the build, or null to read report files on the master
+   * @param budget limits on the rerun details kept
+   */
+  public FlakyTestResult(TestResult testResult, int parseThreads, FilePath workspace,
+      DetailBudget budget) {
+    this(testResult, parseThreads, workspace, budget, null);
+  }
+
+  /**
+   * Construct {@link #FlakyTestResult} from {@link #TestResult}, scanning the given report
+   * files as well as the files of its suites for reruns.
+   *
+   * <p>
+   * The core JUnit archiver merges the suites with the same name and id found in several report
+   * files into the first of them, which only keeps the name of the first file: the reruns of the
+   * other files can only be found if they are listed again.
+   *
+   * @param testResult
+   * @param parseThreads number of threads to read report files with
+   * @param workspace workspace of the build, or null to read report files on the master
+   * @param budget limits on the rerun details kept
+   * @param lister lists all the report files parsed by the core JUnit archiver where they are
+   * scanned, null if they are not known
+   */
+  public FlakyTestResult(TestResult testResult, int parseThreads, FilePath workspace,
+      DetailBudget budget, ReportFileLister lister) {
+    testResultInstance = testResult;
+    keepLongStdio = true;
+    this.parseThreads = parseThreads;
+
+    RerunSummary reruns = readReruns(testResult, lister, parseThreads, workspace, budget,
+        reportScanStats);
+    BuildDetailLimit buildLimit = new BuildDetailLimit(budget);
     for (SuiteResult suiteResult : testResult.getSuites()) {
-      try {
-        suites.addAll(FlakySuiteResult.parse(new File(suiteResult.getFile()), true));
-        testResultInstance = testResult;
-      } catch (DocumentException e) {
-        e.printStackTrace();
-      } catch (IOException e) {
-        e.printStackTrace();
-      } catch (InterruptedException e) {
-        e.printStackTrace();
+      FlakySuiteResult sr = new FlakySuiteResult(suiteResult);
+      for (CaseResult caseResult : suiteResult.getCases()) {
+        List<FlakyRunInformation> flakyRuns = buildLimit.apply(
+            reruns.poll(sr.getName(), caseResult.getClassName(), caseResult.getName()));
+        sr.addCase(new FlakyCaseResult(sr, caseResult, flakyRuns));
       }
+      add(sr);
     }
-    keepLongStdio = true;
+  }
+
+  /**
+   * Reads the reruns of the report files of the given test result, on the node which owns the
+   * workspace if one is given. Reports which cannot be read are logged and skipped.
+   *
+   * <p>
+   * The reruns of all the files are combined in the order the core JUnit archiver merged their
+   * suites in: the files of the suites first, then the other report files. Test cases are told
+   * apart by suite, class and test name, so only the reruns of test cases with the same names in
+   * several files of the same suite, some of which have no rerun at all, can be mismatched.
+   *
+   * @param lister lists all the report files parsed by the core JUnit archiver where they are
+   * scanned, in the same call as the scan, null if they are not known
+   * @param budget limits on the rerun details kept, {@link DetailBudget#COUNT_ONLY} to only
+   * count the reruns of each test case
+   * @param stats statistics to count the report files read in
+   * @return the reruns of all the report files
+   */
+  static RerunSummary readReruns(TestResult testResult, ReportFileLister lister,
+      int parseThreads, FilePath workspace, DetailBudget budget, ReportScanStats stats) {
+    // several suites can come from the same report file (nested test suites)
+    Set<String> files = new LinkedHashSet<String>();
+    for (SuiteResult suiteResult : testResult.getSuites()) {
+      if (suiteResult.getFile() != null) {
+        files.add(suiteResult.getFile());
+      }
+    }
+
+    Map<String, RerunSummary> summaries = Collections.emptyMap();
+    try {
+      if (workspace != null) {
+        RerunScanCallable.Result result = workspace.act(new RerunScanCallable(
+            new ArrayList<String>(files), lister, parseThreads, budget));
+        stats.add(result.stats);
+        summaries = result.summaries;
+      } else {
+        summaries = scanReruns(withListedFiles(files, lister), parseThreads, budget, stats);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      LOGGER.log(Level.WARNING, "Interrupted while reading reruns", e);
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to read reruns", e);
+    }
+
+    RerunSummary reruns = new RerunSummary();
+    for (RerunSummary summary : summaries.values()) {
+      reruns.addAll(summary);
+    }
+    return reruns;
+  }
+
+  /**
+   * @param files absolute paths of the report files of the suites
+   * @param lister lists the other report files, null if they are not known
+   * @return the report files of the suites, followed by the other listed ones
+   */
+  static Collection<String> withListedFiles(Collection<String> files, ReportFileLister lister) {
+    if (lister == null) {
+      return files;
+    }
+    Set<String> allFiles = new LinkedHashSet<String>(files);
+    allFiles.addAll(lister.list());
+    return allFiles;
+  }
+
+  /**
+   * Scans report files for rerun information on up to {@code parseThreads} threads.
+   *
+   * @param budget limits on the rerun details kept, only the run and case limits apply
+   * @param stats statistics to count the report files read in
+   * @return the reruns of each file which could be read, keyed by file name in the given order
+   */
+  static LinkedHashMap<String, RerunSummary> scanReruns(Collection<String> files,
+      int parseThreads, final DetailBudget budget, final ReportScanStats stats)
+      throws IOException {
+    List<Callable<RerunSummary>> scans = new ArrayList<Callable<RerunSummary>>();
+    for (final String file : files) {
+      scans.add(new Callable<RerunSummary>() {
+        public RerunSummary call() {
+          return scanReruns(new File(file), budget, stats);
+        }
+      });
+    }
+    List<RerunSummary> scanned = invokeAll(scans, parseThreads);
+
+    LinkedHashMap<String, RerunSummary> summaries = new LinkedHashMap<String, RerunSummary>();
+    int i = 0;
+    for (String file : files) {
+      RerunSummary summary = scanned.get(i++);
+      if (summary != null) {
+        summaries.put(file, summary);
+      }
+    }
+    return summaries;
+  }
+
+  /**
+   * Scans a report file for rerun information.
+   *
+   * @return the reruns, or null if the file could not be read (the core JUnit archiver
+   * already reported it as a failing test)
+   */
+  private static RerunSummary scanReruns(File reportFile, DetailBudget budget,
+      ReportScanStats stats) {
+    if (!reportFile.isFile() || reportFile.length() == 0) {
+      return null;
+    }
+    try {
+      if (!RerunScanner.mayContainReruns(reportFile)) {
+        stats.addWithoutReruns();
+        return new RerunSummary();
+      }
+      return ReportCache.scan(reportFile, budget, stats);
+    } catch (DocumentException e) {
+      LOGGER.log(Level.WARNING, "Failed to read reruns from " + reportFile, e);
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to read reruns from " + reportFile, e);
+    } catch (RuntimeException e) {
+      LOGGER.log(Level.WARNING, "Failed to read reruns from " + reportFile, e);
+    }
+    return null;
   }
 
   public FlakyTestResult() {
     this.keepLongStdio = false;
   }
 
+  /**
+   * @return the report files read to build this result from a core {@link TestResult}
+   */
+  public ReportScanStats getReportScanStats() {
+    return reportScanStats;
+  }
+
+  /**
+   * Reads report files parsed from now on with up to the given number of threads.
+   * Suites are still merged in the order of the report files, so the result is the same
+   * as when parsing sequentially.
+   */
+  public void setParseThreads(int parseThreads) {
+    this.parseThreads = parseThreads;
+  }
+
   public TestObject getParent() {
     return parent;
   }
@@ -161,18 +428,19 @@ public final class FlakyTestResult extends MetaTabulatedResult {
    */
   public void parse(long buildTime, File baseDir, String[] reportFiles) throws IOException {
 
-    boolean parsed=false;
+    List<File> newReportFiles = new ArrayList<File>();
 
     for (String value : reportFiles) {
       File reportFile = new File(baseDir, value);
       // only count files that were actually updated during this build
       if ( (buildTime-3000/*error margin*/ <= reportFile.lastModified())) {
-        parsePossiblyEmpty(reportFile);
-        parsed = true;
+        newReportFiles.add(reportFile);
       }
     }
 
-    if(!parsed) {
+    if(!newReportFiles.isEmpty()) {
+      parseAll(newReportFiles);
+    } else {
       long localTime = System.currentTimeMillis();
       if(localTime < buildTime-1000) /*margin*/
         // build time is in the the future. clock on this slave must be running behind
@@ -196,17 +464,18 @@ public final class FlakyTestResult extends MetaTabulatedResult {
    * @since 1.500
    */
   public void parse(long buildTime, Iterable<File> reportFiles) throws IOException {
-    boolean parsed=false;
+    List<File> newReportFiles = new ArrayList<File>();
 
     for (File reportFile : reportFiles) {
       // only count files that were actually updated during this build
       if ( (buildTime-3000/*error margin*/ <= reportFile.lastModified())) {
-        parsePossiblyEmpty(reportFile);
-        parsed = true;
+        newReportFiles.add(reportFile);
       }
     }
 
-    if(!parsed) {
+    if(!newReportFiles.isEmpty()) {
+      parseAll(newReportFiles);
+    } else {
       long localTime = System.currentTimeMillis();
       if(localTime < buildTime-1000) /*margin*/
         // build time is in the the future. clock on this slave must be running behind
@@ -225,65 +494,180 @@ public final class FlakyTestResult extends MetaTabulatedResult {
 
   }
 
-  private void parsePossiblyEmpty(File reportFile) throws IOException {
+  /**
+   * Parses the given report files, possibly in parallel, and adds their suites in the order of
+   * the files.
+   */
+  private void parseAll(List<File> reportFiles) throws IOException {
+    List<Callable<List<FlakySuiteResult>>> tasks = new ArrayList<Callable<List<FlakySuiteResult>>>();
+    for (final File reportFile : reportFiles) {
+      tasks.add(new Callable<List<FlakySuiteResult>>() {
+        public List<FlakySuiteResult> call() throws IOException {
+          return parsePossiblyEmpty(reportFile);
+        }
+      });
+    }
+    for (List<FlakySuiteResult> suiteResults : invokeAll(tasks, parseThreads)) {
+      for (FlakySuiteResult suiteResult : suiteResults) {
+        add(suiteResult);
+      }
+    }
+  }
+
+  /**
+   * Shares the failures of the flaky runs of the given suite with the runs already added.
+   */
+  private void shareRunFailures(FlakySuiteResult sr) {
+    if (runFailures == null) {
+      runFailures = new RunFailureTable();
+    }
+    for (FlakyCaseResult cr : sr.getCases()) {
+      if (cr.getFlakyRuns() != null) {
+        for (FlakyRunInformation run : cr.getFlakyRuns()) {
+          run.shareFailure(runFailures);
+        }
+      }
+    }
+  }
+
+  /**
+   * Runs the given tasks on up to {@code parseThreads} threads.
+   *
+   * @return the results of the tasks, in the same order as the tasks
+   */
+  private static <T> List<T> invokeAll(List<Callable<T>> tasks, int parseThreads)
+      throws IOException {
+    List<T> results = new ArrayList<T>(tasks.size());
+    if (parseThreads <= 1 || tasks.size() <= 1) {
+      for (Callable<T> task : tasks) {
+        try {
+          results.add(task.call());
+        } catch (IOException e) {
+          throw e;
+        } catch (RuntimeException e) {
+          throw e;
+        } catch (Exception e) {
+          throw new IOException(e);
+        }
+      }
+      return results;
+    }
+
+    ExecutorService executor =
+        Executors.newFixedThreadPool(Math.min(parseThreads, tasks.size()), PARSE_THREAD_FACTORY);
+    try {
+      for (Future<T> future : executor.invokeAll(tasks)) {
+        results.add(future.get());
+      }
+      return results;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw (IOException) new InterruptedIOException("Interrupted while reading test reports")
+          .initCause(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException(cause);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private List<FlakySuiteResult> parsePossiblyEmpty(File reportFile) throws IOException {
     if(reportFile.length()==0) {
       // this is a typical problem when JVM quits abnormally, like OutOfMemoryError during a test.
       FlakySuiteResult sr = new FlakySuiteResult(reportFile.getName(), "", "");
       sr.addCase(new FlakyCaseResult(sr,"<init>","Test report file "+reportFile.getAbsolutePath()+" was length 0"));
-      add(sr);
+      return Collections.singletonList(sr);
     } else {
-      parse(reportFile);
+      return parseReport(reportFile);
     }
   }
 
   private void add(FlakySuiteResult sr) {
-    for (FlakySuiteResult s : suites) {
-      // JENKINS-12457: If a testsuite is distributed over multiple files, merge it into a single SuiteResult:
-      if(s.getName().equals(sr.getName())  && nullSafeEq(s.getId(),sr.getId())) {
-
-        // However, a common problem is that people parse TEST-*.xml as well as TESTS-TestSuite.xml.
-        // In that case consider the result file as a duplicate and discard it.
-        // see http://jenkins.361315.n4.nabble.com/Problem-with-duplicate-build-execution-td371616.html for discussion.
-        if(strictEq(s.getTimestamp(),sr.getTimestamp())) {
-          return;
+    shareRunFailures(sr);
+    modCount++;
+    if (suitesByNameAndId == null) {
+      suitesByNameAndId = new HashMap<List<String>, FlakySuiteResult>();
+      for (FlakySuiteResult s : suites) {
+        List<String> key = nameAndId(s);
+        if (!suitesByNameAndId.containsKey(key)) {
+          suitesByNameAndId.put(key, s);
         }
+      }
+    }
 
-        for (FlakyCaseResult cr: sr.getCases()) {
-          s.addCase(cr);
-          cr.replaceParent(s);
-        }
-        duration += sr.getDuration();
+    List<String> key = nameAndId(sr);
+    FlakySuiteResult s = suitesByNameAndId.get(key);
+    // JENKINS-12457: If a testsuite is distributed over multiple files, merge it into a single SuiteResult:
+    if (s != null) {
+
+      // However, a common problem is that people parse TEST-*.xml as well as TESTS-TestSuite.xml.
+      // In that case consider the result file as a duplicate and discard it.
+      // see http://jenkins.361315.n4.nabble.com/Problem-with-duplicate-build-execution-td371616.html for discussion.
+      if(strictEq(s.getTimestamp(),sr.getTimestamp())) {
         return;
       }
+
+      for (FlakyCaseResult cr: sr.getCases()) {
+        s.addCase(cr);
+        cr.replaceParent(s);
+      }
+      duration += sr.getDuration();
+      return;
     }
     suites.add(sr);
+    suitesByNameAndId.put(key, sr);
     duration += sr.getDuration();
   }
 
-  private boolean strictEq(Object lhs, Object rhs) {
-    return lhs != null && rhs != null && lhs.equals(rhs);
+  /**
+   * Key of {@link #suitesByNameAndId}. Suites are the same if both their name and id are equal,
+   * where the id may be null.
+   */
+  private static List<String> nameAndId(FlakySuiteResult sr) {
+    return Arrays.asList(sr.getName(), sr.getId());
   }
 
-  private boolean nullSafeEq(Object lhs, Object rhs) {
-    if (lhs == null) {
-      return rhs == null;
-    }
-    return lhs.equals(rhs);
+  /**
+   * @return the suite with the given name and id found by {@link #add(FlakySuiteResult)} when
+   * merging suites, null if there is none
+   */
+  // Visible for testing
+  FlakySuiteResult getIndexedSuite(String name, String id) {
+    return suitesByNameAndId == null ? null : suitesByNameAndId.get(Arrays.asList(name, id));
+  }
+
+  private boolean strictEq(Object lhs, Object rhs) {
+    return lhs != null && rhs != null && lhs.equals(rhs);
   }
 
   /**
    * Parses an additional report file.
    */
   public void parse(File reportFile) throws IOException {
+    for (FlakySuiteResult suiteResult : parseReport(reportFile))
+      add(suiteResult);
+  }
+
+  /**
+   * Parses a report file into suites without adding them. Safe to call from several threads.
+   */
+  private List<FlakySuiteResult> parseReport(File reportFile) throws IOException {
     try {
-      for (FlakySuiteResult suiteResult : FlakySuiteResult.parse(reportFile, keepLongStdio))
-        add(suiteResult);
+      return FlakySuiteResult.parse(reportFile, keepLongStdio);
     } catch (InterruptedException e) {
       throw new IOException("Failed to read "+reportFile,e);
     } catch (RuntimeException e) {
       throw new IOException("Failed to read "+reportFile,e);
     } catch (DocumentException e) {
-      if (!reportFile.getPath().endsWith(".xml")) {
+      if (!ReportFiles.isXmlReport(reportFile)) {
         throw new IOException("Failed to read "+reportFile+"\n"+
             "Is this really a JUnit report file? Your configuration must be matching too many files",e);
       } else {
@@ -292,7 +676,7 @@ public final class FlakyTestResult extends MetaTabulatedResult {
         e.printStackTrace(new PrintWriter(writer));
         String error = "Failed to read test report file "+reportFile.getAbsolutePath()+"\n"+writer.toString();
         sr.addCase(new FlakyCaseResult(sr,"<init>",error));
-        add(sr);
+        return Collections.singletonList(sr);
       }
     }
   }
@@ -378,12 +762,55 @@ public final class FlakyTestResult extends MetaTabulatedResult {
     return flakyTests;
   }
 
+  /**
+   * @return a read-only view of the tests which were not skipped: failed tests first, then flaky
+   *     and passed ones
+   */
   public List<FlakyCaseResult> getAllTests() {
-    List<FlakyCaseResult> allTests = new ArrayList<FlakyCaseResult>();
-    allTests.addAll(failedTests);
-    allTests.addAll(flakyTests);
-    allTests.addAll(passedTests);
-    return allTests;
+    return passedTests == null ? null : new AllTestsList(failedTests, flakyTests, passedTests);
+  }
+
+  /**
+   * Iterates over the same tests as {@link #getAllTests()}, in the same order, for callers which
+   * only need one pass.
+   */
+  public Iterator<FlakyCaseResult> iterateAllTests() {
+    if (passedTests == null) {
+      return Collections.<FlakyCaseResult>emptyList().iterator();
+    }
+    return new AllTestsList(failedTests, flakyTests, passedTests).iterator();
+  }
+
+  /**
+   * Read-only concatenation of the failed, flaky and passed tests, which does not copy them.
+   */
+  private static final class AllTestsList extends AbstractList<FlakyCaseResult> {
+
+    private final List<FlakyCaseResult> failed, flaky, passed;
+
+    AllTestsList(List<FlakyCaseResult> failed, List<FlakyCaseResult> flaky,
+        List<FlakyCaseResult> passed) {
+      this.failed = failed;
+      this.flaky = flaky;
+      this.passed = passed;
+    }
+
+    @Override
+    public FlakyCaseResult get(int index) {
+      if (index < failed.size()) {
+        return failed.get(index);
+      }
+      index -= failed.size();
+      if (index < flaky.size()) {
+        return flaky.get(index);
+      }
+      return passed.get(index - flaky.size());
+    }
+
+    @Override
+    public int size() {
+      return failed.size() + flaky.size() + passed.size();
+    }
   }
 
   /**
@@ -489,45 +916,22 @@ public final class FlakyTestResult extends MetaTabulatedResult {
 
   /**
    * Recount my children.
+   *
+   * <p>
+   * Only informs the cases of the parent action if no suite or case has been added since the
+   * tree of packages and classes was last built.
    */
   @Override
   public void tally() {
-    suitesByName = new HashMap<String, FlakySuiteResult>();
-    failedTests = new ArrayList<FlakyCaseResult>();
-    flakyTests = new ArrayList<FlakyCaseResult>();
-    passedTests = new ArrayList<FlakyCaseResult>();
-    byPackages = new TreeMap<String, FlakyPackageResult>();
-
-    totalTests = 0;
-    skippedTests = 0;
-
-    // Ask all of our children to tally themselves
-    for (FlakySuiteResult s : suites) {
-      s.setParent(this); // kluge to prevent double-counting the results
-      suitesByName.put(s.getName(), s);
-      List<FlakyCaseResult> cases = s.getCases();
-
-      for (FlakyCaseResult cr : cases) {
-        cr.setParentAction(this.parentAction);
-        cr.setParentSuiteResult(s);
-        cr.tally();
-        String pkg = cr.getPackageName(), spkg = safe(pkg);
-        FlakyPackageResult pr = byPackage(spkg);
-        if (pr == null) {
-          byPackages.put(spkg, pr = new FlakyPackageResult(this, pkg));
+    if (isTreeUpToDate()) {
+      for (FlakySuiteResult s : suites) {
+        for (FlakyCaseResult cr : s.getCases()) {
+          cr.setParentAction(this.parentAction);
         }
-        pr.add(cr);
       }
+      return;
     }
-
-    for (FlakyPackageResult pr : byPackages.values()) {
-      pr.tally();
-      skippedTests += pr.getSkipCount();
-      failedTests.addAll(pr.getFailedTests());
-      flakyTests.addAll(pr.getFlakyTests());
-      passedTests.addAll((Collection<? extends FlakyCaseResult>) pr.getPassedTests());
-      totalTests += pr.getTotalCount();
-    }
+    buildTree(false);
   }
 
   /**
@@ -541,26 +945,56 @@ public final class FlakyTestResult extends MetaTabulatedResult {
   public void freeze(AbstractTestResultAction parent, AbstractBuild build) {
     this.parentAction = parent;
     this.owner = build;
-    if(suitesByName==null) {
-      // freeze for the first time
-      suitesByName = new HashMap<String,FlakySuiteResult>();
-      totalTests = 0;
-      failedTests = new ArrayList<FlakyCaseResult>();
-      flakyTests = new ArrayList<FlakyCaseResult>();
-      passedTests = new ArrayList<FlakyCaseResult>();
-      byPackages = new TreeMap<String,FlakyPackageResult>();
+    if (!isTreeUpToDate() || !frozen) {
+      buildTree(true);
     }
+  }
 
-    for (FlakySuiteResult s : suites) {
-      if (!s.freeze(this))      // this is disturbing: has-a-parent is conflated with has-been-counted
-      {
-        continue;
-      }
+  /**
+   * Gives each package a name unique among the packages of this result.
+   */
+  void assignSafeNames() {
+    if (byPackages == null) {
+      return;
+    }
+    List<String> baseNames = new ArrayList<String>(byPackages.size());
+    for (FlakyPackageResult pr : byPackages.values()) {
+      baseNames.add(safe(pr.getName()));
+    }
+    String[] names = SafeNames.uniquify(baseNames);
+    int i = 0;
+    for (FlakyPackageResult pr : byPackages.values()) {
+      pr.setSafeName(names[i++]);
+    }
+  }
+
+  private boolean isTreeUpToDate() {
+    return passedTests != null && treeModCount == modCount;
+  }
+
+  /**
+   * Single pass over the suites and their cases which indexes the suites by name, builds the
+   * package and class tree, counts the cases and partitions them by status.
+   *
+   * @param freeze whether to also sort the cases of each class
+   */
+  private void buildTree(boolean freeze) {
+    suitesByName = new HashMap<String, FlakySuiteResult>();
+    byPackages = new TreeMap<String, FlakyPackageResult>();
+    failedTests = new ArrayList<FlakyCaseResult>();
+    flakyTests = new ArrayList<FlakyCaseResult>();
+    passedTests = new ArrayList<FlakyCaseResult>();
+    totalTests = 0;
+    skippedTests = 0;
 
+    for (FlakySuiteResult s : suites) {
+      s.setParent(this);
       suitesByName.put(s.getName(), s);
 
       totalTests += s.getCases().size();
       for (FlakyCaseResult cr : s.getCases()) {
+        cr.setParentAction(this.parentAction);
+        cr.setParentSuiteResult(s);
         if (cr.isSkipped()) {
           skippedTests++;
         } else if (!cr.isPassed()) {
@@ -581,8 +1015,12 @@ public final class FlakyTestResult extends MetaTabulatedResult {
       }
     }
 
-    for (FlakyPackageResult pr : byPackages.values())
-      pr.freeze();
+    for (FlakyPackageResult pr : byPackages.values()) {
+      pr.count(freeze);
+    }
+    assignSafeNames();
+    treeModCount = modCount;
+    frozen = freeze;
   }
 
   /**
@@ -594,27 +1032,37 @@ public final class FlakyTestResult extends MetaTabulatedResult {
    * @return the map between test name and a {@link SingleTestFlakyStatsWithRevision},
    */
   public Map<String, SingleTestFlakyStatsWithRevision> getTestFlakyStatsMap() {
+    return getTestFlakyStatsMap(SingleTestFlakyStatsWithRevision.getBuildRevision(owner));
+  }
+
+  /**
+   * Same as {@link #getTestFlakyStatsMap()}, with the revision of the build already resolved
+   *
+   * @param revision the revision of the build, shared by the stats of all the tests
+   * @return the map between test name and a {@link SingleTestFlakyStatsWithRevision},
+   */
+  public Map<String, SingleTestFlakyStatsWithRevision> getTestFlakyStatsMap(String revision) {
 
     Map<String, SingleTestFlakyStatsWithRevision> testFlakyStatsWithRevisionMap =
         new HashMap<String, SingleTestFlakyStatsWithRevision>();
 
     for (FlakyCaseResult passedTest : passedTests) {
-      testFlakyStatsWithRevisionMap.put(passedTest.getFullDisplayName(),
-          new SingleTestFlakyStatsWithRevision(new SingleTestFlakyStats(1, 0, 0), owner));
+      testFlakyStatsWithRevisionMap.put(Names.intern(passedTest.getFullDisplayName()),
+          new SingleTestFlakyStatsWithRevision(new SingleTestFlakyStats(1, 0, 0), revision));
     }
 
     for (FlakyCaseResult failedTest : failedTests) {
       int flakyRetry = failedTest.getFlakyRuns() == null ? 0 : failedTest.getFlakyRuns().size();
-      testFlakyStatsWithRevisionMap.put(failedTest.getFullDisplayName(),
+      testFlakyStatsWithRevisionMap.put(Names.intern(failedTest.getFullDisplayName()),
           new SingleTestFlakyStatsWithRevision(new SingleTestFlakyStats(0, 1 + flakyRetry, 0),
-              owner));
+              revision));
     }
 
     for (FlakyCaseResult flakyTest : flakyTests) {
       int flakyRetry = flakyTest.getFlakyRuns() == null ? 0 : flakyTest.getFlakyRuns().size();
-      testFlakyStatsWithRevisionMap.put(flakyTest.getFullDisplayName(),
+      testFlakyStatsWithRevisionMap.put(Names.intern(flakyTest.getFullDisplayName()),
           new SingleTestFlakyStatsWithRevision(new SingleTestFlakyStats(1, flakyRetry, 0),
-              owner));
+              revision));
     }
 
     return testFlakyStatsWithRevisionMap;
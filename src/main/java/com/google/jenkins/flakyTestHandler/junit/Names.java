@@ -0,0 +1,42 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.junit;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/**
+ * Intern table for the names of suites, packages, classes and tests.
+ *
+ * <p>
+ * The same names are repeated by every case of a class, by the package and class results built
+ * from them, by the keys of the flaky stats and by every build of a job. Interning them while
+ * parsing keeps a single copy of each distinct name. The table only holds weak references, so
+ * names of builds which are no longer loaded are collected.
+ */
+final class Names {
+
+  private static final Interner<String> NAMES = Interners.newWeakInterner();
+
+  private Names() {
+  }
+
+  /**
+   * @return the canonical instance equal to the given name, or null if the name is null
+   */
+  static String intern(String name) {
+    return name == null ? null : NAMES.intern(name);
+  }
+}
@@ -0,0 +1,233 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.junit;
+
+import org.dom4j.DocumentException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of the reruns found in report files, keyed by the content of the files.
+ *
+ * <p>
+ * Matrix and multi-module builds often publish the same report file several times (matched by
+ * several patterns, or copied between stages); such files are only scanned once. The cache is
+ * disabled until given a size with {@link #setMaxSize(int)}, and evicts the least recently used
+ * reports beyond that size. Reports scanned on an agent don't go through this cache.
+ */
+public final class ReportCache {
+
+  /**
+   * Scanned reruns by {@link #key(List, Digest)}, in access order. Values are never handed
+   * out, only copies of them.
+   */
+  private static final LinkedHashMap<List<Object>, RerunSummary> CACHE =
+      new LinkedHashMap<List<Object>, RerunSummary>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<List<Object>, RerunSummary> eldest) {
+          if (size() > maxSize) {
+            removed(eldest.getKey());
+            return true;
+          }
+          return false;
+        }
+      };
+
+  /**
+   * Number of cached reports by {@link #shortKey(File, DetailBudget)}, so that only the reports
+   * which may be cached are hashed before being looked up. Guarded by {@link #CACHE}.
+   */
+  private static final Map<List<Object>, Integer> SHORT_KEYS = new HashMap<List<Object>, Integer>();
+
+  /**
+   * Maximal number of cached reports, 0 disables the cache. Guarded by {@link #CACHE}.
+   */
+  private static int maxSize;
+
+  private ReportCache() {
+  }
+
+  /**
+   * Sets the maximal number of cached reports, evicting the least recently used ones if needed.
+   *
+   * @param size maximal number of cached reports, 0 to disable the cache
+   */
+  public static void setMaxSize(int size) {
+    synchronized (CACHE) {
+      maxSize = Math.max(0, size);
+      while (CACHE.size() > maxSize) {
+        List<Object> eldest = CACHE.keySet().iterator().next();
+        CACHE.remove(eldest);
+        removed(eldest);
+      }
+    }
+  }
+
+  public static int getMaxSize() {
+    synchronized (CACHE) {
+      return maxSize;
+    }
+  }
+
+  /**
+   * Scans a report file for reruns, unless a file with the same name and content has already
+   * been scanned.
+   *
+   * <p>
+   * A report is only hashed before being scanned if a cached one has the same name and length;
+   * otherwise it is hashed while being scanned, so that it is only read once.
+   *
+   * @param budget see {@link RerunScanner#scan(File, DetailBudget)}
+   * @param stats statistics to count the report in
+   * @return the reruns of the report, which may be polled by the caller
+   */
+  static RerunSummary scan(File reportFile, DetailBudget budget, ReportScanStats stats)
+      throws DocumentException, IOException {
+    if (getMaxSize() == 0) {
+      stats.add(1, 0);
+      return RerunScanner.scan(reportFile, budget);
+    }
+
+    List<Object> shortKey = shortKey(reportFile, budget);
+    boolean candidate;
+    synchronized (CACHE) {
+      candidate = SHORT_KEYS.containsKey(shortKey);
+    }
+
+    RerunSummary summary;
+    Digest digest;
+    if (candidate) {
+      digest = digest(reportFile);
+      RerunSummary cached;
+      synchronized (CACHE) {
+        cached = CACHE.get(key(shortKey, digest));
+      }
+      if (cached != null) {
+        stats.add(1, 1);
+        return cached.copy();
+      }
+      summary = RerunScanner.scan(reportFile, budget);
+    } else {
+      MessageDigest md = newMessageDigest();
+      InputStream in = new DigestInputStream(ReportFiles.open(reportFile), md);
+      try {
+        summary = RerunScanner.scan(reportFile, in, budget);
+        drain(in);
+      } finally {
+        in.close();
+      }
+      digest = new Digest(md.digest());
+    }
+
+    stats.add(1, 0);
+    List<Object> key = key(shortKey, digest);
+    synchronized (CACHE) {
+      if (CACHE.put(key, summary.copy()) == null) {
+        Integer count = SHORT_KEYS.get(shortKey);
+        SHORT_KEYS.put(shortKey, count == null ? 1 : count + 1);
+      }
+      // the put may have evicted the eldest entry, and with it the only entry of the short key
+      if (!CACHE.containsKey(key)) {
+        removed(key);
+      }
+    }
+    return summary;
+  }
+
+  /**
+   * The file name is part of the key, as suites without a name are named after their file.
+   */
+  private static List<Object> shortKey(File reportFile, DetailBudget budget) {
+    return Arrays.<Object>asList(reportFile.getName(), reportFile.length(), budget);
+  }
+
+  private static List<Object> key(List<Object> shortKey, Digest digest) {
+    return Arrays.<Object>asList(shortKey.get(0), shortKey.get(1), shortKey.get(2), digest);
+  }
+
+  /**
+   * Updates {@link #SHORT_KEYS} once the entry of the given key is no longer cached. Called with
+   * the lock on {@link #CACHE} held.
+   */
+  private static void removed(List<Object> key) {
+    List<Object> shortKey = key.subList(0, 3);
+    Integer count = SHORT_KEYS.get(shortKey);
+    if (count == null || count <= 1) {
+      SHORT_KEYS.remove(shortKey);
+    } else {
+      SHORT_KEYS.put(shortKey, count - 1);
+    }
+  }
+
+  private static MessageDigest newMessageDigest() throws IOException {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * @return the digest of the content of a report, decompressed as it is scanned
+   */
+  private static Digest digest(File reportFile) throws IOException {
+    MessageDigest md = newMessageDigest();
+    InputStream in = new DigestInputStream(ReportFiles.open(reportFile), md);
+    try {
+      drain(in);
+    } finally {
+      in.close();
+    }
+    return new Digest(md.digest());
+  }
+
+  private static void drain(InputStream in) throws IOException {
+    byte[] buffer = new byte[8192];
+    while (in.read(buffer) != -1) {
+      // only read for the digest
+    }
+  }
+
+  /**
+   * Content digest of a report, compared by value
+   */
+  private static final class Digest {
+    private final byte[] bytes;
+
+    Digest(byte[] bytes) {
+      this.bytes = bytes;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Digest && Arrays.equals(bytes, ((Digest) o).bytes);
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(bytes);
+    }
+  }
+}
@@ -0,0 +1,95 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.junit;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DirectoryScanner;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.Util;
+
+/**
+ * Lists the report files the core JUnit archiver parsed, on the node where the reports are
+ * scanned for reruns, so that listing them does not take a call to the node of its own.
+ *
+ * <p>
+ * Like the core JUnit archiver, report files which have not been updated during the build are
+ * left out, allowing for the clock difference between the master and the node.
+ */
+public final class ReportFileLister implements Serializable {
+
+  /**
+   * Error margin on the modification time of the report files, as in the core JUnit archiver
+   */
+  private static final long TIMESTAMP_MARGIN = 3000;
+
+  private final String workspace;
+
+  private final String testResults;
+
+  private final long buildTime;
+
+  private final long nowMaster;
+
+  /**
+   * @param workspace path of the workspace on the node which owns it
+   * @param testResults pattern of the report files, as configured in the core JUnit archiver
+   * @param buildTime start time of the build on the master
+   */
+  public ReportFileLister(String workspace, String testResults, long buildTime) {
+    this.workspace = workspace;
+    this.testResults = testResults;
+    this.buildTime = buildTime;
+    this.nowMaster = System.currentTimeMillis();
+  }
+
+  /**
+   * To be called on the node which owns the workspace.
+   *
+   * @return absolute paths of the report files, in the order the core JUnit archiver read them,
+   * empty if they cannot be listed
+   */
+  List<String> list() {
+    long localBuildTime = buildTime + (System.currentTimeMillis() - nowMaster);
+    List<String> files = new ArrayList<String>();
+    DirectoryScanner scanner;
+    try {
+      scanner = Util.createFileSet(new File(workspace), testResults).getDirectoryScanner();
+    } catch (BuildException e) {
+      LOGGER.log(Level.WARNING, "Failed to list the report files " + testResults + " in "
+          + workspace, e);
+      return files;
+    }
+
+    File baseDir = scanner.getBasedir();
+    for (String name : scanner.getIncludedFiles()) {
+      File reportFile = new File(baseDir, name);
+      if (localBuildTime - TIMESTAMP_MARGIN <= reportFile.lastModified()) {
+        files.add(reportFile.getAbsolutePath());
+      }
+    }
+    return files;
+  }
+
+  private static final Logger LOGGER = Logger.getLogger(ReportFileLister.class.getName());
+
+  private static final long serialVersionUID = 1L;
+}
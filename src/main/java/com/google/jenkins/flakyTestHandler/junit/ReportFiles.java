@@ -0,0 +1,62 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.junit;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Opens report files and the output files next to them, which may be gzip compressed
+ * ({@code TEST-*.xml.gz}). Compressed files are decompressed while being read.
+ */
+final class ReportFiles {
+
+  static final String GZIP_SUFFIX = ".gz";
+
+  private ReportFiles() {
+  }
+
+  static boolean isCompressed(File file) {
+    return file.getName().endsWith(GZIP_SUFFIX);
+  }
+
+  /**
+   * @return true if the file is named like a, possibly compressed, XML report
+   */
+  static boolean isXmlReport(File file) {
+    String name = file.getName();
+    return name.endsWith(".xml") || name.endsWith(".xml" + GZIP_SUFFIX);
+  }
+
+  /**
+   * Opens a buffered stream over the uncompressed content of the file.
+   */
+  static InputStream open(File file) throws IOException {
+    InputStream in = new BufferedInputStream(new FileInputStream(file));
+    if (!isCompressed(file)) {
+      return in;
+    }
+    try {
+      return new GZIPInputStream(in, 8192);
+    } catch (IOException e) {
+      in.close();
+      throw e;
+    }
+  }
+}
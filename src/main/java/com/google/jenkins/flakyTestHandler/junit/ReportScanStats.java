@@ -0,0 +1,91 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.junit;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts the report files read for one test result, how many of them were skipped by the
+ * pre-scan for rerun elements, and how many came from the {@link ReportCache}. Safe to update
+ * from several parsing threads.
+ */
+public final class ReportScanStats implements Serializable {
+
+  private final AtomicInteger reports = new AtomicInteger();
+
+  private final AtomicInteger withoutReruns = new AtomicInteger();
+
+  private final AtomicInteger cacheHits = new AtomicInteger();
+
+  void add(int reports, int cacheHits) {
+    this.reports.addAndGet(reports);
+    this.cacheHits.addAndGet(cacheHits);
+  }
+
+  /**
+   * Counts a report file which the pre-scan found no rerun elements in.
+   */
+  void addWithoutReruns() {
+    reports.incrementAndGet();
+    withoutReruns.incrementAndGet();
+  }
+
+  /**
+   * Adds the counts of a scan done elsewhere, e.g. on an agent.
+   */
+  void add(ReportScanStats other) {
+    reports.addAndGet(other.getReports());
+    withoutReruns.addAndGet(other.getWithoutReruns());
+    cacheHits.addAndGet(other.getCacheHits());
+  }
+
+  /**
+   * @return number of report files read
+   */
+  public int getReports() {
+    return reports.get();
+  }
+
+  /**
+   * @return number of report files which were only pre-scanned, as they have no rerun elements
+   */
+  public int getWithoutReruns() {
+    return withoutReruns.get();
+  }
+
+  /**
+   * @return number of report files whose reruns were taken from the {@link ReportCache}
+   */
+  public int getCacheHits() {
+    return cacheHits.get();
+  }
+
+  @Override
+  public String toString() {
+    int reports = getReports();
+    int withoutReruns = getWithoutReruns();
+    int cacheHits = getCacheHits();
+    return "Read " + reports + " test report(s), " + withoutReruns + " without reruns ("
+        + percent(withoutReruns, reports) + "% on the fast path), " + cacheHits
+        + " from the report cache (" + percent(cacheHits, reports) + "% hit rate)";
+  }
+
+  private static int percent(int count, int total) {
+    return total == 0 ? 0 : count * 100 / total;
+  }
+
+  private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,79 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.junit;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+
+/**
+ * Scans report files for reruns on the node which owns them, so that only the
+ * {@link RerunSummary}s and not the reports themselves are sent to the master.
+ */
+final class RerunScanCallable implements FilePath.FileCallable<RerunScanCallable.Result> {
+
+  /**
+   * Absolute paths of the report files of the suites on the node
+   */
+  private final List<String> files;
+
+  /**
+   * Lists the other report files on the node, null if they are not known
+   */
+  private final ReportFileLister lister;
+
+  private final int parseThreads;
+
+  private final DetailBudget budget;
+
+  RerunScanCallable(List<String> files, ReportFileLister lister, int parseThreads,
+      DetailBudget budget) {
+    this.files = files;
+    this.lister = lister;
+    this.parseThreads = parseThreads;
+    this.budget = budget;
+  }
+
+  public Result invoke(File workspace, VirtualChannel channel)
+      throws IOException, InterruptedException {
+    ReportScanStats stats = new ReportScanStats();
+    return new Result(FlakyTestResult.scanReruns(
+        FlakyTestResult.withListedFiles(files, lister), parseThreads, budget, stats), stats);
+  }
+
+  /**
+   * Reruns of each report file, keyed by file name in the order the files were scanned, with
+   * the statistics of the scan on the node
+   */
+  static final class Result implements Serializable {
+    final LinkedHashMap<String, RerunSummary> summaries;
+
+    final ReportScanStats stats;
+
+    Result(LinkedHashMap<String, RerunSummary> summaries, ReportScanStats stats) {
+      this.summaries = summaries;
+      this.stats = stats;
+    }
+
+    private static final long serialVersionUID = 1L;
+  }
+
+  private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,379 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.junit;
+
+import com.google.jenkins.flakyTestHandler.junit.FlakyCaseResult.FlakyRunInformation;
+
+import org.dom4j.DocumentException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import hudson.tasks.test.TestObject;
+
+/**
+ * Streaming scan of a JUnit report which only extracts the rerun information
+ * (flakyFailure, flakyError, rerunFailure and rerunError elements) of each test case.
+ *
+ * <p>
+ * Used together with the {@link hudson.tasks.junit.SuiteResult}s already parsed by the
+ * core JUnit archiver, so that the report does not have to be parsed into a DOM a second time.
+ */
+final class RerunScanner {
+
+  static final Set<String> RERUN_ELEMENTS = new HashSet<String>(Arrays.asList(
+      "flakyFailure", "flakyError", "rerunFailure", "rerunError"));
+
+  /**
+   * Stands for each rerun found when only counting them.
+   */
+  private static final FlakyRunInformation COUNTED_RUN =
+      new FlakyRunInformation(null, null, null, null);
+
+  /**
+   * {@link #RERUN_ELEMENTS} as bytes, which are the same in all the ASCII compatible encodings
+   */
+  private static final byte[][] RERUN_ELEMENT_BYTES;
+
+  private static final int MAX_RERUN_ELEMENT_LENGTH;
+
+  static {
+    RERUN_ELEMENT_BYTES = new byte[RERUN_ELEMENTS.size()][];
+    int i = 0, maxLength = 0;
+    for (String element : RERUN_ELEMENTS) {
+      RERUN_ELEMENT_BYTES[i++] = element.getBytes(Charset.forName("US-ASCII"));
+      maxLength = Math.max(maxLength, element.length());
+    }
+    MAX_RERUN_ELEMENT_LENGTH = maxLength;
+  }
+
+  private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+
+  static {
+    XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, true);
+    XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+  }
+
+  static final String CASE_LIMIT_REACHED = "rerun detail limit of the test case reached";
+
+  private final RerunSummary summary = new RerunSummary();
+
+  private final File xmlReport;
+
+  /**
+   * Limits on the rerun details kept, only the run and case limits apply to a single report.
+   */
+  private final DetailBudget budget;
+  private final Deque<Frame> stack = new ArrayDeque<Frame>();
+
+  // state of the test case being read
+  private int caseDepth = -1;
+  private String caseSuiteName, caseClassName, caseTestName;
+  private List<FlakyRunInformation> caseRuns;
+  private int caseRemaining;
+
+  // state of the rerun element being read
+  private int rerunDepth = -1;
+  private String rerunMessage;
+  private DetailBuilder rerunText;
+  private String rerunStdout, rerunStderr;
+
+  // state of the system-out/system-err element of a rerun being read
+  private String stdioName;
+  private DetailBuilder stdioText;
+
+  private RerunScanner(File xmlReport, DetailBudget budget) {
+    this.xmlReport = xmlReport;
+    this.budget = budget;
+  }
+
+  /**
+   * Scans the given report for reruns.
+   */
+  static RerunSummary scan(File xmlReport) throws DocumentException, IOException {
+    return scan(xmlReport, DetailBudget.UNLIMITED);
+  }
+
+  /**
+   * Scans the given report for reruns, truncating their details to the run and case limits of
+   * the given budget.
+   *
+   * @param budget limits on the details kept, {@link DetailBudget#COUNT_ONLY} to only count reruns
+   */
+  static RerunSummary scan(File xmlReport, DetailBudget budget)
+      throws DocumentException, IOException {
+    InputStream in = ReportFiles.open(xmlReport);
+    try {
+      return scan(xmlReport, in, budget);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Scans the given, already opened, report for reruns. The stream is left open, and may not
+   * have been read to its end.
+   *
+   * @param in the content of the report, decompressed
+   */
+  static RerunSummary scan(File xmlReport, InputStream in, DetailBudget budget)
+      throws DocumentException, IOException {
+    RerunScanner scanner = new RerunScanner(xmlReport, budget);
+    try {
+      XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(in);
+      try {
+        scanner.read(reader);
+      } finally {
+        reader.close();
+      }
+    } catch (XMLStreamException e) {
+      throw new DocumentException("Failed to parse " + xmlReport + ": " + e.getMessage(), e);
+    }
+    scanner.summary.compact();
+    return scanner.summary;
+  }
+
+  /**
+   * Cheap check of whether a report may contain rerun elements, by looking for their names in
+   * the raw bytes of the report without parsing it. A report for which this returns false has
+   * no reruns; one for which it returns true has to be scanned to find them.
+   */
+  static boolean mayContainReruns(File xmlReport) throws IOException {
+    InputStream in = ReportFiles.open(xmlReport);
+    try {
+      // keep the end of the previous chunk, in case a name is split between two chunks
+      int overlap = MAX_RERUN_ELEMENT_LENGTH - 1;
+      byte[] buffer = new byte[8192 + overlap];
+      int kept = 0;
+      int read;
+      while ((read = in.read(buffer, kept, buffer.length - kept)) != -1) {
+        int end = kept + read;
+        if (containsRerunElement(buffer, end)) {
+          return true;
+        }
+        kept = Math.min(overlap, end);
+        System.arraycopy(buffer, end - kept, buffer, 0, kept);
+      }
+      return false;
+    } finally {
+      in.close();
+    }
+  }
+
+  private static boolean containsRerunElement(byte[] buffer, int end) {
+    for (int i = 0; i < end; i++) {
+      byte b = buffer[i];
+      if (b == 0) {
+        // not an ASCII compatible encoding (e.g. UTF-16), the names can't be looked for as bytes
+        return true;
+      }
+      if (b != 'f' && b != 'r') {
+        continue;
+      }
+      for (byte[] element : RERUN_ELEMENT_BYTES) {
+        if (regionMatches(buffer, i, end, element)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private static boolean regionMatches(byte[] buffer, int offset, int end, byte[] element) {
+    if (end - offset < element.length) {
+      return false;
+    }
+    for (int j = 0; j < element.length; j++) {
+      if (buffer[offset + j] != element[j]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void read(XMLStreamReader reader) throws XMLStreamException {
+    while (reader.hasNext()) {
+      switch (reader.next()) {
+        case XMLStreamConstants.START_ELEMENT:
+          startElement(reader);
+          break;
+        case XMLStreamConstants.END_ELEMENT:
+          endElement();
+          break;
+        case XMLStreamConstants.CHARACTERS:
+        case XMLStreamConstants.CDATA:
+        case XMLStreamConstants.SPACE:
+          if (stdioText != null && stack.size() == rerunDepth + 1) {
+            stdioText.append(reader.getTextCharacters(), reader.getTextStart(),
+                reader.getTextLength());
+          } else if (rerunText != null && stack.size() == rerunDepth) {
+            rerunText.append(reader.getTextCharacters(), reader.getTextStart(),
+                reader.getTextLength());
+          }
+          break;
+        default:
+          break;
+      }
+    }
+  }
+
+  private void startElement(XMLStreamReader reader) {
+    String name = reader.getLocalName();
+    Frame parent = stack.peek();
+
+    if (parent == null || (parent.suite && name.equals("testsuite"))) {
+      stack.push(new Frame(true, suiteName(reader), reader.getAttributeValue(null, "name")));
+      return;
+    }
+    stack.push(new Frame(false, null, null));
+    int depth = stack.size();
+
+    if (parent.suite && name.equals("testcase")) {
+      // same class name resolution as FlakyCaseResult
+      String classname = reader.getAttributeValue(null, "classname");
+      if (classname == null) {
+        classname = parent.suiteNameAttribute;
+      }
+      String nameAttr = reader.getAttributeValue(null, "name");
+      if (classname == null && nameAttr.contains(".")) {
+        classname = nameAttr.substring(0, nameAttr.lastIndexOf('.'));
+        nameAttr = nameAttr.substring(nameAttr.lastIndexOf('.') + 1);
+      }
+      caseDepth = depth;
+      caseSuiteName = parent.suiteName;
+      caseClassName = classname;
+      caseTestName = nameAttr;
+      caseRuns = null;
+      caseRemaining = DetailBudget.effective(budget.getCaseLimit());
+    } else if (caseDepth >= 0 && depth == caseDepth + 1 && RERUN_ELEMENTS.contains(name)) {
+      rerunDepth = depth;
+      if (!budget.isCountOnly()) {
+        String message = reader.getAttributeValue(null, "message");
+        rerunMessage = message == null ? null : finish(newDetail(0).append(message));
+        rerunText = newDetail(0);
+      }
+      rerunStdout = rerunStderr = null;
+    } else if (rerunText != null && depth == rerunDepth + 1
+        && ((name.equals("system-out") && rerunStdout == null)
+        || (name.equals("system-err") && rerunStderr == null))) {
+      stdioName = name;
+      // the stack trace read so far is only charged when the rerun ends
+      stdioText = newDetail(rerunText.getKeptLength());
+    }
+  }
+
+  private void endElement() {
+    int depth = stack.size();
+    stack.pop();
+
+    if (stdioText != null && depth == rerunDepth + 1) {
+      if (stdioName.equals("system-out")) {
+        rerunStdout = finish(stdioText);
+      } else {
+        rerunStderr = finish(stdioText);
+      }
+      stdioName = null;
+      stdioText = null;
+    } else if (rerunDepth >= 0 && depth == rerunDepth) {
+      if (caseRuns == null) {
+        caseRuns = new ArrayList<FlakyRunInformation>();
+      }
+      caseRuns.add(rerunText == null ? COUNTED_RUN : new FlakyRunInformation(
+          rerunMessage, finish(rerunText), rerunStdout, rerunStderr));
+      rerunDepth = -1;
+      rerunMessage = null;
+      rerunText = null;
+    } else if (caseDepth >= 0 && depth == caseDepth) {
+      summary.add(caseSuiteName, caseClassName, caseTestName, caseRuns);
+      caseDepth = -1;
+      caseSuiteName = caseClassName = caseTestName = null;
+      caseRuns = null;
+    }
+  }
+
+  /**
+   * Starts reading a rerun detail, within the run limit and what is left of the case limit.
+   *
+   * @param reserved characters of the case limit already kept by details which are not finished
+   */
+  private DetailBuilder newDetail(int reserved) {
+    int runLimit = DetailBudget.effective(budget.getRunLimit());
+    int remaining = Math.max(0, caseRemaining - reserved);
+    if (remaining < runLimit) {
+      return new DetailBuilder(remaining, CASE_LIMIT_REACHED);
+    }
+    return new DetailBuilder(runLimit, null);
+  }
+
+  /**
+   * Finishes reading a rerun detail, charging what is kept of it to the case limit. A detail
+   * which grew past what is left of the case limit while other details were read is truncated
+   * again.
+   */
+  private String finish(DetailBuilder detail) {
+    int kept = detail.getKeptLength();
+    if (kept > caseRemaining) {
+      String truncated = DetailBuilder.truncate(detail.toString(), caseRemaining,
+          CASE_LIMIT_REACHED);
+      caseRemaining = 0;
+      return truncated;
+    }
+    caseRemaining -= kept;
+    return detail.toString();
+  }
+
+  /**
+   * Same suite name resolution as {@link FlakySuiteResult}.
+   */
+  private String suiteName(XMLStreamReader reader) {
+    String name = reader.getAttributeValue(null, "name");
+    if (name == null) {
+      name = '(' + xmlReport.getName() + ')';
+    } else {
+      String pkg = reader.getAttributeValue(null, "package");
+      if (pkg != null && pkg.length() > 0) {
+        name = pkg + '.' + name;
+      }
+    }
+    return TestObject.safe(name);
+  }
+
+  private static final class Frame {
+    final boolean suite;
+    final String suiteName;
+    final String suiteNameAttribute;
+
+    Frame(boolean suite, String suiteName, String suiteNameAttribute) {
+      this.suite = suite;
+      this.suiteName = suiteName;
+      this.suiteNameAttribute = suiteNameAttribute;
+    }
+  }
+}
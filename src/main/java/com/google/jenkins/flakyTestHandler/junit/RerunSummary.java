@@ -0,0 +1,130 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.junit;
+
+import com.google.jenkins.flakyTestHandler.junit.FlakyCaseResult.FlakyRunInformation;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reruns found in one report file by {@link RerunScanner}.
+ *
+ * <p>
+ * Only test cases which have been rerun are kept, so this stays small enough to be sent
+ * from an agent to the master.
+ */
+final class RerunSummary implements Serializable {
+
+  /**
+   * Reruns of each test case keyed by {@link #key(String, String, String)}. As test names need
+   * not be unique, each key maps to the reruns of all matching test cases in document order;
+   * test cases without reruns are represented by an empty list.
+   */
+  private final Map<String, ArrayDeque<List<FlakyRunInformation>>> reruns =
+      new HashMap<String, ArrayDeque<List<FlakyRunInformation>>>();
+
+  void add(String suiteName, String className, String testName,
+      List<FlakyRunInformation> runs) {
+    String key = key(suiteName, className, testName);
+    ArrayDeque<List<FlakyRunInformation>> caseRuns = reruns.get(key);
+    if (caseRuns == null) {
+      reruns.put(key, caseRuns = new ArrayDeque<List<FlakyRunInformation>>(1));
+    }
+    caseRuns.add(runs == null ? new ArrayList<FlakyRunInformation>() : runs);
+  }
+
+  /**
+   * Moves the reruns of another summary after the reruns of this one, for a suite whose test
+   * cases are spread over several report files.
+   */
+  void addAll(RerunSummary other) {
+    for (Map.Entry<String, ArrayDeque<List<FlakyRunInformation>>> entry
+        : other.reruns.entrySet()) {
+      ArrayDeque<List<FlakyRunInformation>> caseRuns = reruns.get(entry.getKey());
+      if (caseRuns == null) {
+        reruns.put(entry.getKey(), entry.getValue());
+      } else {
+        caseRuns.addAll(entry.getValue());
+      }
+    }
+    other.reruns.clear();
+  }
+
+  /**
+   * Removes and returns the reruns of the next test case with the given names.
+   *
+   * @return the reruns, never null
+   */
+  List<FlakyRunInformation> poll(String suiteName, String className, String testName) {
+    ArrayDeque<List<FlakyRunInformation>> caseRuns =
+        reruns.get(key(suiteName, className, testName));
+    if (caseRuns == null || caseRuns.isEmpty()) {
+      return new ArrayList<FlakyRunInformation>();
+    }
+    return caseRuns.poll();
+  }
+
+  /**
+   * Drops the test cases none of which have been rerun.
+   */
+  void compact() {
+    for (Iterator<ArrayDeque<List<FlakyRunInformation>>> it = reruns.values().iterator();
+        it.hasNext(); ) {
+      boolean rerun = false;
+      for (List<FlakyRunInformation> runs : it.next()) {
+        if (!runs.isEmpty()) {
+          rerun = true;
+          break;
+        }
+      }
+      if (!rerun) {
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Copies the reruns of each test case, so that polling the copy, and modifying the polled
+   * reruns when building a test result, leaves this summary intact.
+   */
+  RerunSummary copy() {
+    RerunSummary copy = new RerunSummary();
+    for (Map.Entry<String, ArrayDeque<List<FlakyRunInformation>>> entry : reruns.entrySet()) {
+      ArrayDeque<List<FlakyRunInformation>> caseRuns =
+          new ArrayDeque<List<FlakyRunInformation>>(entry.getValue().size());
+      for (List<FlakyRunInformation> runs : entry.getValue()) {
+        List<FlakyRunInformation> runsCopy = new ArrayList<FlakyRunInformation>(runs.size());
+        for (FlakyRunInformation run : runs) {
+          runsCopy.add(run.copy());
+        }
+        caseRuns.add(runsCopy);
+      }
+      copy.reruns.put(entry.getKey(), caseRuns);
+    }
+    return copy;
+  }
+
+  private static String key(String suiteName, String className, String testName) {
+    return suiteName + '#' + className + '#' + testName;
+  }
+
+  private static final long serialVersionUID = 1L;
+}
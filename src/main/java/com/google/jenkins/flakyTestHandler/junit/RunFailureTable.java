@@ -0,0 +1,54 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.junit;
+
+import com.google.jenkins.flakyTestHandler.junit.FlakyCaseResult.RunFailure;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Failures of the flaky runs of a build, keyed by message and stack trace, so that a failure
+ * seen in many runs is only stored once.
+ *
+ * <p>
+ * Only failures with exactly the same text are shared, so that each run keeps its own line
+ * numbers, addresses and timestamps; {@link RunFailure#getFingerprint()} is only used to group
+ * and compare failures.
+ */
+final class RunFailureTable {
+
+  private final Map<List<String>, RunFailure> failures = new HashMap<List<String>, RunFailure>();
+
+  /**
+   * @return the failure already in the table with the same message and stack trace, or the given
+   * failure after adding it to the table
+   */
+  synchronized RunFailure share(RunFailure failure) {
+    List<String> key = Arrays.asList(failure.details, failure.stackTrace);
+    RunFailure shared = failures.get(key);
+    if (shared == null) {
+      failures.put(key, failure);
+      return failure;
+    }
+    return shared;
+  }
+
+  synchronized int size() {
+    return failures.size();
+  }
+}
@@ -0,0 +1,130 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.junit;
+
+import com.google.jenkins.flakyTestHandler.junit.FlakyCaseResult.FlakyRunInformation;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+
+/**
+ * File under the build directory holding the stdout and stderr of the flaky runs of a build.
+ *
+ * <p>
+ * Rerun output is rarely looked at, so instead of keeping it in the test data of the build
+ * (which is loaded in memory with the test result), each run only records the byte offset and
+ * length of its stdout and stderr in this file, and they are read back when the run is
+ * displayed.
+ */
+public final class RunStdioFile {
+
+  static final String FILE_NAME = "flakyRunStdio.txt";
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private RunStdioFile() {
+  }
+
+  /**
+   * @param buildDir root directory of a build
+   * @return the stdio file of the build, which may not exist
+   */
+  public static File of(File buildDir) {
+    return new File(buildDir, FILE_NAME);
+  }
+
+  /**
+   * Moves the stdout and stderr of all the flaky runs of a test result to the stdio file of a
+   * build. Output of runs which have already been stored is left alone, and the file is only
+   * created if some run has output.
+   *
+   * @param buildDir root directory of the build the test result belongs to
+   * @param testResult the test result of the build
+   */
+  public static void store(File buildDir, FlakyTestResult testResult) throws IOException {
+    Writer writer = null;
+    try {
+      for (FlakySuiteResult suiteResult : testResult.getSuites()) {
+        for (FlakyCaseResult caseResult : suiteResult.getCases()) {
+          if (caseResult.getFlakyRuns() == null) {
+            continue;
+          }
+          for (FlakyRunInformation run : caseResult.getFlakyRuns()) {
+            if (run.flakyStdOut == null && run.flakyStdErr == null) {
+              continue;
+            }
+            if (writer == null) {
+              writer = new Writer(of(buildDir));
+            }
+            run.storeStdio(writer);
+          }
+        }
+      }
+    } finally {
+      if (writer != null) {
+        writer.close();
+      }
+    }
+  }
+
+  static String read(File stdioFile, long offset, int length) throws IOException {
+    byte[] bytes = new byte[length];
+    RandomAccessFile file = new RandomAccessFile(stdioFile, "r");
+    try {
+      file.seek(offset);
+      file.readFully(bytes);
+    } finally {
+      file.close();
+    }
+    return new String(bytes, UTF_8);
+  }
+
+  /**
+   * Appends text to a stdio file, keeping track of the offset it is written at.
+   */
+  static final class Writer {
+    private final OutputStream out;
+    private long offset;
+
+    private Writer(File stdioFile) throws IOException {
+      // several JUnit publishers may store the output of the same build
+      offset = stdioFile.length();
+      out = new BufferedOutputStream(new FileOutputStream(stdioFile, true));
+    }
+
+    long getOffset() {
+      return offset;
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    int write(String text) throws IOException {
+      byte[] bytes = text.getBytes(UTF_8);
+      out.write(bytes);
+      offset += bytes.length;
+      return bytes.length;
+    }
+
+    void close() throws IOException {
+      out.close();
+    }
+  }
+}
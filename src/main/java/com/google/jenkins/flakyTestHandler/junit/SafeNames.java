@@ -0,0 +1,60 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.junit;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Unique URL-safe names of sibling test objects, computed in one pass when their tree is built
+ * rather than by {@link hudson.tasks.test.TestObject#uniquifyName}, which scans all the siblings
+ * of each object under a lock.
+ */
+final class SafeNames {
+
+  private SafeNames() {
+  }
+
+  /**
+   * Gives each sibling its base name, or the base name with a {@code _2}, {@code _3}... suffix if
+   * an earlier sibling already has it, like {@link hudson.tasks.test.TestObject#uniquifyName}
+   * does for siblings accessed in order.
+   *
+   * @param baseNames URL-safe names of the siblings, in order
+   * @return the unique names of the siblings, in the same order
+   */
+  static String[] uniquify(List<String> baseNames) {
+    String[] names = new String[baseNames.size()];
+    Set<String> taken = new HashSet<String>();
+    Map<String, Integer> sequences = new HashMap<String, Integer>();
+    for (int i = 0; i < names.length; i++) {
+      String base = baseNames.get(i);
+      String name = base;
+      if (!taken.add(name)) {
+        Integer sequence = sequences.get(base);
+        int next = sequence == null ? 2 : sequence + 1;
+        while (!taken.add(name = base + '_' + next)) {
+          next++;
+        }
+        sequences.put(base, next);
+      }
+      names[i] = name;
+    }
+    return names;
+  }
+}
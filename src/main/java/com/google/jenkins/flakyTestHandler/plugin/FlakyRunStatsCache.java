@@ -0,0 +1,162 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.plugin;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.jenkins.flakyTestHandler.plugin.FlakyTestResultAction.FlakyRunStats;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Controller wide cache of the {@link FlakyRunStats} loaded from the builds of all projects.
+ *
+ * <p>
+ * Entries are weighted by their number of tests and the least recently used ones are evicted
+ * beyond the configured weight. Values are also softly referenced so that the cache gives way
+ * under memory pressure, and keys are the weakly referenced actions, so that the stats of builds
+ * unloaded by Jenkins go with them. Concurrent loads of the same build wait for a single read of
+ * its stats file.
+ */
+public final class FlakyRunStatsCache {
+
+  /**
+   * Default maximal number of tests whose stats are cached, a few tens of MB
+   */
+  public static final long DEFAULT_MAX_WEIGHT = 250000;
+
+  /**
+   * Counters of all the caches since Jenkins started. They are kept here rather than by
+   * {@code CacheBuilder.recordStats()}, which does not exist in the Guava bundled with Jenkins
+   * core.
+   */
+  private static final AtomicLong REQUESTS = new AtomicLong();
+  private static final AtomicLong LOAD_SUCCESSES = new AtomicLong();
+  private static final AtomicLong LOAD_EXCEPTIONS = new AtomicLong();
+  private static final AtomicLong LOAD_TIME = new AtomicLong();
+  private static final AtomicLong EVICTIONS = new AtomicLong();
+
+  private static final CacheLoader<FlakyTestResultAction, FlakyRunStats> LOADER =
+      new CacheLoader<FlakyTestResultAction, FlakyRunStats>() {
+        @Override
+        public FlakyRunStats load(FlakyTestResultAction action) {
+          long start = System.nanoTime();
+          boolean loaded = false;
+          try {
+            FlakyRunStats stats = action.load();
+            loaded = true;
+            return stats;
+          } finally {
+            LOAD_TIME.addAndGet(System.nanoTime() - start);
+            (loaded ? LOAD_SUCCESSES : LOAD_EXCEPTIONS).incrementAndGet();
+          }
+        }
+      };
+
+  private static final RemovalListener<FlakyTestResultAction, FlakyRunStats> EVICTION_COUNTER =
+      new RemovalListener<FlakyTestResultAction, FlakyRunStats>() {
+        public void onRemoval(RemovalNotification<FlakyTestResultAction, FlakyRunStats> removal) {
+          if (removal.wasEvicted()) {
+            EVICTIONS.incrementAndGet();
+          }
+        }
+      };
+
+  private static final Weigher<FlakyTestResultAction, FlakyRunStats> WEIGHER =
+      new Weigher<FlakyTestResultAction, FlakyRunStats>() {
+        @Override
+        public int weigh(FlakyTestResultAction action, FlakyRunStats stats) {
+          return 1 + stats.getTestCount();
+        }
+      };
+
+  private static long maxWeight = DEFAULT_MAX_WEIGHT;
+
+  private static volatile LoadingCache<FlakyTestResultAction, FlakyRunStats> cache =
+      newCache(DEFAULT_MAX_WEIGHT);
+
+  private FlakyRunStatsCache() {
+  }
+
+  private static LoadingCache<FlakyTestResultAction, FlakyRunStats> newCache(long maxWeight) {
+    return CacheBuilder.newBuilder()
+        .weakKeys()
+        .softValues()
+        .maximumWeight(maxWeight)
+        .weigher(WEIGHER)
+        .removalListener(EVICTION_COUNTER)
+        .build(LOADER);
+  }
+
+  /**
+   * Sets the maximal number of tests whose stats are cached. Changing it empties the cache.
+   *
+   * @param weight maximal number of tests, 0 to disable the cache
+   */
+  public static synchronized void setMaxWeight(long weight) {
+    weight = Math.max(0, weight);
+    if (weight != maxWeight) {
+      LoadingCache<FlakyTestResultAction, FlakyRunStats> old = cache;
+      maxWeight = weight;
+      cache = newCache(weight);
+      old.invalidateAll();
+    }
+  }
+
+  public static synchronized long getMaxWeight() {
+    return maxWeight;
+  }
+
+  /**
+   * Get the stats of the build of the given action, loading them from disk if they aren't cached
+   */
+  static FlakyRunStats get(FlakyTestResultAction action) {
+    REQUESTS.incrementAndGet();
+    return cache.getUnchecked(action);
+  }
+
+  /**
+   * Caches the stats just computed for the build of the given action
+   */
+  static void put(FlakyTestResultAction action, FlakyRunStats stats) {
+    cache.put(action, stats);
+  }
+
+  /**
+   * @return the hits, misses, load times and evictions of the cache since Jenkins started
+   */
+  public static CacheStats getStats() {
+    long loads = LOAD_SUCCESSES.get() + LOAD_EXCEPTIONS.get();
+    return new CacheStats(Math.max(0, REQUESTS.get() - loads), loads, LOAD_SUCCESSES.get(),
+        LOAD_EXCEPTIONS.get(), LOAD_TIME.get(), EVICTIONS.get());
+  }
+
+  /**
+   * @return the number of cached builds
+   */
+  public static long size() {
+    return cache.size();
+  }
+
+  // Visible for testing
+  static void invalidateAll() {
+    cache.invalidateAll();
+  }
+}
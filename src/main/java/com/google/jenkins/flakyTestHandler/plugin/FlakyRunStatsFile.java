@@ -0,0 +1,358 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.plugin;
+
+import com.google.jenkins.flakyTestHandler.plugin.FlakyTestResultAction.FlakyRunStats;
+import com.google.jenkins.flakyTestHandler.plugin.HistoryAggregatedFlakyTestResultAction.SingleTestFlakyStats;
+import com.google.jenkins.flakyTestHandler.plugin.HistoryAggregatedFlakyTestResultAction.SingleTestFlakyStatsWithRevision;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compact binary form of the {@link FlakyRunStats} of a build.
+ *
+ * <p>
+ * The file starts with a magic number and a format version, followed by the table of the
+ * distinct revisions, the revision of the run first. Then come the names of the tests which passed
+ * once at the revision of the run, which are most tests of a healthy build, and the other tests
+ * with their counters. Both lists are sorted by name, and each name is stored as the length of the
+ * prefix it shares with the previous name and the rest of the name. The other tests only refer to
+ * their revision by index when the table has several revisions, which only happens for stats
+ * merged from several runs. All the numbers are stored as varints.
+ *
+ * <p>
+ * Version 1 files list all the tests with their counters and revision index, version 2 files
+ * only omit the index when there is a single revision. Both are still read.
+ *
+ * <p>
+ * Files are read as a stream of tests with {@link #read(File, Visitor)}, files with another
+ * magic number or version are rejected so that the caller can fall back to the legacy XML.
+ */
+final class FlakyRunStatsFile {
+
+  static final String FILE_NAME = "junitFlakyStatsResult.bin";
+
+  private static final int MAGIC = 0x46545301; // "FTS" 1
+
+  static final int VERSION = 3;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private FlakyRunStatsFile() {
+  }
+
+  /**
+   * Receives the tests of a stats file as they are read
+   */
+  interface Visitor {
+    /**
+     * @param revision the revision of the run, or null if unknown
+     */
+    void start(String revision);
+
+    void visit(String testName, String revision, int pass, int fail, int flake);
+  }
+
+  /**
+   * @return the stats file of the build with the given root directory
+   */
+  static File of(File buildDir) {
+    return new File(buildDir, FILE_NAME);
+  }
+
+  /**
+   * Writes the stats to the given file, replacing it once completely written.
+   */
+  static void write(File file, FlakyRunStats stats) throws IOException {
+    String runRevision = stats.getRevision();
+    Map<String, SingleTestFlakyStatsWithRevision> others = stats.getOtherTests();
+    if (others == null) {
+      others = new HashMap<String, SingleTestFlakyStatsWithRevision>();
+    }
+    if (runRevision == null && !others.isEmpty()) {
+      // stats recorded without the revision of the run
+      runRevision = revisionOf(others.values().iterator().next());
+    }
+
+    List<String> passed = new ArrayList<String>();
+    if (stats.getPassedTests() != null) {
+      passed.addAll(Arrays.asList(stats.getPassedTests()));
+    }
+    TreeMap<String, SingleTestFlakyStatsWithRevision> sorted =
+        new TreeMap<String, SingleTestFlakyStatsWithRevision>();
+    for (Map.Entry<String, SingleTestFlakyStatsWithRevision> entry : others.entrySet()) {
+      if (FlakyRunStats.isPassedOnce(entry.getValue(), runRevision)) {
+        passed.add(entry.getKey());
+      } else {
+        sorted.put(entry.getKey(), entry.getValue());
+      }
+    }
+    Collections.sort(passed);
+
+    // the revision of the run comes first, the revisions of tests merged from other runs follow
+    Map<String, Integer> revisionIds = new HashMap<String, Integer>();
+    List<String> revisions = new ArrayList<String>();
+    revisionIds.put(runRevision == null ? "" : runRevision, 0);
+    revisions.add(runRevision == null ? "" : runRevision);
+    for (SingleTestFlakyStatsWithRevision test : sorted.values()) {
+      String revision = revisionOf(test);
+      if (!revisionIds.containsKey(revision)) {
+        revisionIds.put(revision, revisions.size());
+        revisions.add(revision);
+      }
+    }
+    boolean singleRevision = revisions.size() == 1;
+
+    File tmp = new File(file.getPath() + ".tmp");
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(tmp)));
+    try {
+      out.writeInt(MAGIC);
+      writeVarInt(out, VERSION);
+
+      writeVarInt(out, revisions.size());
+      for (String revision : revisions) {
+        writeString(out, revision);
+      }
+      out.writeBoolean(singleRevision);
+
+      writeVarInt(out, passed.size());
+      String previous = "";
+      for (String name : passed) {
+        writeName(out, previous, name);
+        previous = name;
+      }
+
+      writeVarInt(out, sorted.size());
+      previous = "";
+      for (Map.Entry<String, SingleTestFlakyStatsWithRevision> entry : sorted.entrySet()) {
+        writeName(out, previous, entry.getKey());
+        previous = entry.getKey();
+
+        SingleTestFlakyStats testStats = entry.getValue().getStats();
+        if (!singleRevision) {
+          writeVarInt(out, revisionIds.get(revisionOf(entry.getValue())));
+        }
+        writeVarInt(out, testStats.getPass());
+        writeVarInt(out, testStats.getFail());
+        writeVarInt(out, testStats.getFlake());
+      }
+    } finally {
+      out.close();
+    }
+
+    if (!tmp.renameTo(file)) {
+      // renaming over an existing file fails on some platforms
+      if (!file.delete() || !tmp.renameTo(file)) {
+        tmp.delete();
+        throw new IOException("Failed to replace " + file);
+      }
+    }
+  }
+
+  /**
+   * Reads the stats of the given file, sparsely if it has the revision of the run
+   *
+   * @throws IOException if the file can't be read or isn't in this format
+   */
+  static FlakyRunStats read(File file) throws IOException {
+    final List<String> passed = new ArrayList<String>();
+    final Map<String, SingleTestFlakyStatsWithRevision> others =
+        new HashMap<String, SingleTestFlakyStatsWithRevision>();
+    final String[] runRevision = new String[1];
+    String revision = read(file, new Visitor() {
+      public void start(String revision) {
+        runRevision[0] = revision;
+      }
+
+      public void visit(String testName, String revision, int pass, int fail, int flake) {
+        if (revision.equals(runRevision[0]) && pass == 1 && fail == 0 && flake == 0) {
+          // tests are visited in the order of their names
+          passed.add(testName);
+        } else {
+          others.put(testName, new SingleTestFlakyStatsWithRevision(
+              new SingleTestFlakyStats(pass, fail, flake), revision));
+        }
+      }
+    });
+    if (revision == null) {
+      // nothing is held sparsely without the revision of the run
+      return new FlakyRunStats(others);
+    }
+    return new FlakyRunStats(revision, passed.toArray(new String[passed.size()]), others);
+  }
+
+  /**
+   * Streams the tests of the given file to the visitor. The tests which passed once at the
+   * revision of the run come first, each list of tests is in the order of their names.
+   *
+   * @return the revision of the run, or null if unknown
+   * @throws IOException if the file can't be read or isn't in this format
+   */
+  static String read(File file, Visitor visitor) throws IOException {
+    // bounds the lengths and counts read, in case the file is corrupted
+    long limit = file.length();
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      if (in.readInt() != MAGIC) {
+        throw new IOException(file + " is not a flaky stats file");
+      }
+      int version = readVarInt(in);
+      if (version < 1 || version > VERSION) {
+        throw new IOException("Unsupported version " + version + " of " + file);
+      }
+
+      String[] revisions = new String[readLength(in, limit)];
+      for (int i = 0; i < revisions.length; i++) {
+        revisions[i] = readString(in, limit);
+      }
+      // version 1 stores the revision of every test
+      boolean singleRevision = version > 1 && in.readBoolean();
+      if (singleRevision && revisions.length != 1) {
+        throw new IOException("Corrupted revisions in " + file);
+      }
+      String runRevision = version > 1 && revisions[0].length() > 0 ? revisions[0] : null;
+      visitor.start(runRevision);
+
+      if (version > 2) {
+        int passedCount = readLength(in, limit);
+        String previous = "";
+        for (int i = 0; i < passedCount; i++) {
+          String name = readName(in, previous, limit, file);
+          visitor.visit(name, revisions[0], 1, 0, 0);
+          previous = name;
+        }
+      }
+
+      int testCount = readLength(in, limit);
+      String previous = "";
+      for (int i = 0; i < testCount; i++) {
+        String name = readName(in, previous, limit, file);
+        int revision = singleRevision ? 0 : readVarInt(in);
+        if (revision >= revisions.length) {
+          throw new IOException("Corrupted revision in " + file);
+        }
+        visitor.visit(name, revisions[revision], readVarInt(in), readVarInt(in), readVarInt(in));
+        previous = name;
+      }
+      return runRevision;
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void writeName(DataOutputStream out, String previous, String name)
+      throws IOException {
+    int shared = sharedPrefixLength(previous, name);
+    writeVarInt(out, shared);
+    writeString(out, name.substring(shared));
+  }
+
+  private static String readName(DataInputStream in, String previous, long limit, File file)
+      throws IOException {
+    int shared = readVarInt(in);
+    if (shared > previous.length()) {
+      throw new IOException("Corrupted test name in " + file);
+    }
+    return previous.substring(0, shared) + readString(in, limit);
+  }
+
+  private static String revisionOf(SingleTestFlakyStatsWithRevision test) {
+    return test.getRevision() == null ? "" : test.getRevision();
+  }
+
+  private static int sharedPrefixLength(String a, String b) {
+    int max = Math.min(a.length(), b.length());
+    int i = 0;
+    while (i < max && a.charAt(i) == b.charAt(i)) {
+      i++;
+    }
+    // don't split a surrogate pair
+    if (i > 0 && Character.isHighSurrogate(a.charAt(i - 1))) {
+      i--;
+    }
+    return i;
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    byte[] bytes = s.getBytes(UTF8);
+    writeVarInt(out, bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in, long limit) throws IOException {
+    byte[] bytes = new byte[readLength(in, limit)];
+    in.readFully(bytes);
+    return new String(bytes, UTF8);
+  }
+
+  private static int readLength(InputStream in, long limit) throws IOException {
+    int length = readVarInt(in);
+    if (length > limit) {
+      throw new IOException("Length " + length + " is larger than the file");
+    }
+    return length;
+  }
+
+  /**
+   * Writes a non-negative int, 7 bits per byte with the high bit set on all but the last byte
+   */
+  static void writeVarInt(OutputStream out, int value) throws IOException {
+    if (value < 0) {
+      throw new IllegalArgumentException("Negative value " + value);
+    }
+    while ((value & ~0x7F) != 0) {
+      out.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  static int readVarInt(InputStream in) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      int b = in.read();
+      if (b < 0) {
+        throw new EOFException();
+      }
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        if (value < 0) {
+          throw new IOException("Varint out of range");
+        }
+        return value;
+      }
+    }
+    throw new IOException("Varint too long");
+  }
+}
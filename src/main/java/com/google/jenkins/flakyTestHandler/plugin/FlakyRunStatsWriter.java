@@ -0,0 +1,154 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.plugin;
+
+import com.google.jenkins.flakyTestHandler.plugin.FlakyTestResultAction.FlakyRunStats;
+
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.TaskListener;
+import hudson.model.listeners.ItemListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+/**
+ * Writes the {@link FlakyRunStats} of builds to disk in the background, so that the post-build
+ * phase of a build doesn't wait for them.
+ *
+ * <p>
+ * Writes are queued to a single thread in the order they are requested. When the queue is full,
+ * the build thread writes its stats itself. Until its stats are written, a build
+ * {@link #getPending(FlakyTestResultAction) reads} them from memory rather than from disk. Queued
+ * writes are flushed before Jenkins shuts down. A failed write is printed to the log of the build
+ * if it is still running, and recorded on its {@link FlakyTestResultAction} otherwise.
+ */
+public final class FlakyRunStatsWriter {
+
+  private static final Logger LOGGER = Logger.getLogger(FlakyRunStatsWriter.class.getName());
+
+  /**
+   * Maximal number of writes waiting for the writer thread
+   */
+  static final int QUEUE_SIZE = 64;
+
+  private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(1, 1,
+      0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(QUEUE_SIZE),
+      new NamingThreadFactory(new DaemonThreadFactory(), "FlakyRunStatsWriter"),
+      new ThreadPoolExecutor.CallerRunsPolicy());
+
+  /**
+   * Stats not written yet, by the action of their build. Guarded by itself.
+   */
+  private static final Map<FlakyTestResultAction, FlakyRunStats> PENDING =
+      new IdentityHashMap<FlakyTestResultAction, FlakyRunStats>();
+
+  private FlakyRunStatsWriter() {
+  }
+
+  /**
+   * Queues the stats of a build to be written in its root directory
+   *
+   * @param action the action holding the stats
+   * @param build the build the stats belong to
+   * @param stats the stats to write
+   * @param listener listener of the build, to report a failed write to while the build runs
+   */
+  static void write(final FlakyTestResultAction action, final AbstractBuild<?, ?> build,
+      final FlakyRunStats stats, final TaskListener listener) {
+    synchronized (PENDING) {
+      PENDING.put(action, stats);
+    }
+    EXECUTOR.execute(new Runnable() {
+      public void run() {
+        try {
+          FlakyTestResultAction.save(build.getRootDir(), stats);
+        } catch (IOException e) {
+          reportFailure(action, build, listener, e);
+        } finally {
+          synchronized (PENDING) {
+            // a later write of the same build may be queued
+            if (PENDING.get(action) == stats) {
+              PENDING.remove(action);
+              PENDING.notifyAll();
+            }
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * @return the stats of the build of the given action which are not written yet, or null
+   */
+  static FlakyRunStats getPending(FlakyTestResultAction action) {
+    synchronized (PENDING) {
+      return PENDING.get(action);
+    }
+  }
+
+  /**
+   * Waits until no write is pending, including the ones run by build threads when the queue is
+   * full
+   */
+  public static void flush() throws InterruptedException {
+    synchronized (PENDING) {
+      while (!PENDING.isEmpty()) {
+        PENDING.wait();
+      }
+    }
+  }
+
+  private static void reportFailure(FlakyTestResultAction action, AbstractBuild<?, ?> build,
+      TaskListener listener, IOException e) {
+    LOGGER.log(Level.WARNING, "Failed to save the JUnit flaky test stats of " + build, e);
+    if (build.isBuilding() && listener != null) {
+      e.printStackTrace(listener.fatalError("Failed to save the JUnit flaky test stats result"));
+    }
+    action.setPersistError(e.toString());
+    if (!build.isBuilding()) {
+      // the build was saved with the action before the write failed
+      try {
+        build.save();
+      } catch (IOException saveError) {
+        LOGGER.log(Level.WARNING, "Failed to save " + build, saveError);
+      }
+    }
+  }
+
+  /**
+   * Flushes the queued writes before Jenkins shuts down
+   */
+  @Extension
+  public static final class ShutdownFlusher extends ItemListener {
+    @Override
+    public void onBeforeShutdown() {
+      try {
+        flush();
+      } catch (InterruptedException e) {
+        LOGGER.log(Level.WARNING, "Interrupted while saving the JUnit flaky test stats", e);
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
@@ -14,18 +14,24 @@
  */
 package com.google.jenkins.flakyTestHandler.plugin;
 
+import com.google.common.collect.Iterators;
 import com.google.jenkins.flakyTestHandler.junit.FlakyCaseResult;
 import com.google.jenkins.flakyTestHandler.junit.FlakyTestResult;
+import com.google.jenkins.flakyTestHandler.plugin.HistoryAggregatedFlakyTestResultAction.SingleTestFlakyStats;
 import com.google.jenkins.flakyTestHandler.plugin.HistoryAggregatedFlakyTestResultAction.SingleTestFlakyStatsWithRevision;
 
 import com.thoughtworks.xstream.XStream;
 
 import java.io.File;
 import java.io.IOException;
-import java.lang.ref.WeakReference;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.logging.Level;
@@ -48,12 +54,6 @@ import jenkins.model.RunAction2;
  */
 public class FlakyTestResultAction implements RunAction2 {
 
-  /**
-   * FlakyRunStats object, use WeakReference to reduce memory overhead since it will be
-   * stored on the disk
-   */
-  private transient WeakReference<FlakyRunStats> flakyRunStats;
-
   private static final XStream XSTREAM = new XStream2();
 
   /**
@@ -61,6 +61,11 @@ public class FlakyTestResultAction implements RunAction2 {
    */
   private AbstractBuild<?,?> build;
 
+  /**
+   * Why the stats of this build could not be saved, recorded by {@link FlakyRunStatsWriter}
+   */
+  private volatile String persistError;
+
   public static final Logger logger = Logger.getLogger(FlakyTestResultAction.class.getName());
 
   static {
@@ -79,10 +84,15 @@ public class FlakyTestResultAction implements RunAction2 {
     if (action != null) {
       Object latestResult = action.getResult();
       if (latestResult != null && latestResult instanceof TestResult) {
-        FlakyTestResult flakyTestResult = new FlakyTestResult((TestResult) latestResult);
-
-        flakyTestResult.freeze(action, build);
-        FlakyRunStats stats = new FlakyRunStats(flakyTestResult.getTestFlakyStatsMap());
+        // Reuse the flaky test result built by JUnitFlakyTestDataPublisher if it is configured,
+        // only the flaky stats are needed here otherwise
+        FlakyTestResult flakyTestResult =
+            FlakyTestResultCache.getCachedFlakyTestResult(build, (TestResult) latestResult);
+        String revision = SingleTestFlakyStatsWithRevision.getBuildRevision(build);
+        FlakyRunStats stats = new FlakyRunStats(revision, flakyTestResult != null
+            ? flakyTestResult.getTestFlakyStatsMap(revision)
+            : JUnitFlakyResultArchiver.createFlakyStatsMap(build, revision,
+                (TestResult) latestResult, listener));
         setFlakyRunStats(stats, listener);
       }
     } else {
@@ -98,23 +108,58 @@ public class FlakyTestResultAction implements RunAction2 {
 
   }
 
-  private XmlFile getDataFile() {
-    return new XmlFile(XSTREAM,new File(build.getRootDir(), "junitFlakyStatsResult.xml"));
+  /**
+   * @return the legacy XML form of the stats, read for builds which have no binary stats file
+   */
+  private static XmlFile getDataFile(File buildDir) {
+    return new XmlFile(XSTREAM,new File(buildDir, "junitFlakyStatsResult.xml"));
   }
 
   /**
    * Loads a {@link TestResult} from disk.
    */
-  private FlakyRunStats load() {
+  FlakyRunStats load() {
+    FlakyRunStats pending = FlakyRunStatsWriter.getPending(this);
+    if (pending != null) {
+      return pending;
+    }
+    if (build == null) {
+      return new FlakyRunStats();
+    }
+    return load(build.getRootDir());
+  }
+
+  /**
+   * Loads the stats of the build with the given root directory, from its binary stats file if
+   * there is a readable one and from the legacy XML otherwise.
+   */
+  // Visible for testing
+  static FlakyRunStats load(File buildDir) {
+    File statsFile = FlakyRunStatsFile.of(buildDir);
+    if (statsFile.exists()) {
+      try {
+        return FlakyRunStatsFile.read(statsFile);
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Failed to read " + statsFile + ", trying the XML stats", e);
+      }
+    }
     FlakyRunStats stats;
     try {
-      stats = (FlakyRunStats)getDataFile().read();
+      stats = (FlakyRunStats)getDataFile(buildDir).read();
     } catch (IOException e) {
       stats = new FlakyRunStats();   // return a dummy
     }
     return stats;
   }
 
+  /**
+   * Saves the stats of the build with the given root directory in the binary format.
+   */
+  // Visible for testing
+  static void save(File buildDir, FlakyRunStats stats) throws IOException {
+    FlakyRunStatsFile.write(FlakyRunStatsFile.of(buildDir), stats);
+  }
+
   @Override
   public void onAttached(Run<?, ?> r) {
     this.build = (AbstractBuild<?,?>) r;
@@ -140,25 +185,16 @@ public class FlakyTestResultAction implements RunAction2 {
     return null;
   }
 
-  public synchronized FlakyRunStats getFlakyRunStats() {
-    FlakyRunStats stats;
-    if (flakyRunStats == null) {
-      stats = load();
-      flakyRunStats = new WeakReference<FlakyRunStats>(stats);
-    } else {
-      stats = flakyRunStats.get();
-    }
-
-    if (stats == null) {
-      stats = load();
-      flakyRunStats = new WeakReference<FlakyRunStats>(stats);
-    }
-    return stats;
+  /**
+   * Get the stats of this build, from the {@link FlakyRunStatsCache} or from disk
+   */
+  public FlakyRunStats getFlakyRunStats() {
+    return FlakyRunStatsCache.get(this);
   }
 
   // Visible for testing
-  synchronized void setFlakyRunStats(FlakyRunStats stats) {
-    flakyRunStats = new WeakReference<FlakyRunStats>(stats);
+  void setFlakyRunStats(FlakyRunStats stats) {
+    FlakyRunStatsCache.put(this, stats);
   }
 
   /**
@@ -166,13 +202,21 @@ public class FlakyTestResultAction implements RunAction2 {
    */
   public synchronized void setFlakyRunStats(FlakyRunStats stats, BuildListener listener) {
 
-    // persist the data
-    try {
-      getDataFile().write(stats);
-    } catch (IOException e) {
-      e.printStackTrace(listener.fatalError("Failed to save the JUnit flaky test stats result"));
-    }
-    this.flakyRunStats = new WeakReference<FlakyRunStats>(stats);
+    // persist the data in the background, load() returns them until they are written
+    persistError = null;
+    FlakyRunStatsWriter.write(this, build, stats, listener);
+    FlakyRunStatsCache.put(this, stats);
+  }
+
+  /**
+   * @return why the stats of this build could not be saved, or null if they were
+   */
+  public String getPersistError() {
+    return persistError;
+  }
+
+  void setPersistError(String persistError) {
+    this.persistError = persistError;
   }
 
   /**
@@ -194,14 +238,38 @@ public class FlakyTestResultAction implements RunAction2 {
 
   /**
    * Class to hold all the passing/failing/flaky tests for one run
+   *
+   * <p>
+   * Runs with a known revision are held sparsely: the tests which passed once at that revision
+   * are only kept as a sorted array of names, and the map only holds the other tests. Use
+   * {@link #visit(TestStatsVisitor)} and {@link #getTestNames()} to read them without expanding
+   * the passing tests into the map.
    */
   public static class FlakyRunStats {
 
     /**
-     * Map between test case name and its flaky stats with revision info
+     * Stats of the tests which passed once at the revision of the run, shared between them
+     */
+    private static final SingleTestFlakyStats PASSED = new SingleTestFlakyStats(1, 0, 0);
+
+    /**
+     * Map between test case name and its flaky stats with revision info. Doesn't include the
+     * {@link #passedTests} of a sparse run.
      */
     Map<String, SingleTestFlakyStatsWithRevision> testFlakyStatsWithRevisionMap;
 
+    /**
+     * The revision this run was built at, shared by the stats of its tests. Null for runs
+     * recorded before it was kept.
+     */
+    String revision;
+
+    /**
+     * Sorted names of the tests which passed once at {@link #revision} and are not in the map,
+     * null if the run is not held sparsely
+     */
+    String[] passedTests;
+
     public FlakyRunStats() {
       this.testFlakyStatsWithRevisionMap = new HashMap<String, SingleTestFlakyStatsWithRevision>();
     }
@@ -211,10 +279,152 @@ public class FlakyTestResultAction implements RunAction2 {
       this.testFlakyStatsWithRevisionMap = testFlakyStatsWithRevisionMap;
     }
 
-    public Map<String, SingleTestFlakyStatsWithRevision> getTestFlakyStatsWithRevisionMap() {
+    /**
+     * Holds the stats of a run sparsely, the given map is not kept.
+     */
+    public FlakyRunStats(String revision, Map<String, SingleTestFlakyStatsWithRevision>
+        testFlakyStatsWithRevisionMap) {
+      this.revision = revision;
+      this.testFlakyStatsWithRevisionMap = new HashMap<String, SingleTestFlakyStatsWithRevision>();
+      List<String> passed = new ArrayList<String>();
+      for (Map.Entry<String, SingleTestFlakyStatsWithRevision> entry
+          : testFlakyStatsWithRevisionMap.entrySet()) {
+        if (isPassedOnce(entry.getValue(), revision)) {
+          passed.add(entry.getKey());
+        } else {
+          this.testFlakyStatsWithRevisionMap.put(entry.getKey(), entry.getValue());
+        }
+      }
+      this.passedTests = passed.toArray(new String[passed.size()]);
+      Arrays.sort(this.passedTests);
+    }
+
+    /**
+     * Holds the stats of a run sparsely
+     *
+     * @param passedTests sorted names of the tests which passed once at the given revision
+     * @param otherTests the stats of the other tests
+     */
+    FlakyRunStats(String revision, String[] passedTests,
+        Map<String, SingleTestFlakyStatsWithRevision> otherTests) {
+      this.revision = revision;
+      this.passedTests = passedTests;
+      this.testFlakyStatsWithRevisionMap = otherTests;
+    }
+
+    /**
+     * @return whether the given stats are the ones of a test which passed once at the given
+     *     revision
+     */
+    static boolean isPassedOnce(SingleTestFlakyStatsWithRevision test, String revision) {
+      SingleTestFlakyStats stats = test.getStats();
+      return revision != null && revision.equals(test.getRevision()) && stats.getPass() == 1
+          && stats.getFail() == 0 && stats.getFlake() == 0;
+    }
+
+    /**
+     * Get the stats of all the tests of the run. The passing tests of a sparse run are expanded
+     * into a new map on each call and the run stays sparse, as it may be shared through the
+     * {@link FlakyRunStatsCache}: prefer {@link #visit(TestStatsVisitor)}.
+     */
+    public synchronized Map<String, SingleTestFlakyStatsWithRevision>
+        getTestFlakyStatsWithRevisionMap() {
+      if (passedTests == null) {
+        return testFlakyStatsWithRevisionMap;
+      }
+      Map<String, SingleTestFlakyStatsWithRevision> expanded =
+          new HashMap<String, SingleTestFlakyStatsWithRevision>(testFlakyStatsWithRevisionMap);
+      for (String testName : passedTests) {
+        expanded.put(testName,
+            new SingleTestFlakyStatsWithRevision(new SingleTestFlakyStats(PASSED), revision));
+      }
+      return expanded;
+    }
+
+    /**
+     * @return the revision this run was built at, or null if unknown
+     */
+    public String getRevision() {
+      return revision;
+    }
+
+    /**
+     * @return the sorted names of the tests held sparsely, or null
+     */
+    synchronized String[] getPassedTests() {
+      return passedTests;
+    }
+
+    /**
+     * @return the stats of the tests which are not held sparsely
+     */
+    synchronized Map<String, SingleTestFlakyStatsWithRevision> getOtherTests() {
       return testFlakyStatsWithRevisionMap;
     }
 
+    /**
+     * @return the number of tests of the run
+     */
+    public synchronized int getTestCount() {
+      return (passedTests == null ? 0 : passedTests.length)
+          + (testFlakyStatsWithRevisionMap == null ? 0 : testFlakyStatsWithRevisionMap.size());
+    }
+
+    /**
+     * Passes the stats of all the tests of the run to the visitor, the tests held sparsely first.
+     */
+    public void visit(TestStatsVisitor visitor) {
+      String[] passed;
+      Map<String, SingleTestFlakyStatsWithRevision> others;
+      synchronized (this) {
+        passed = passedTests;
+        others = testFlakyStatsWithRevisionMap;
+      }
+      if (passed != null) {
+        for (String testName : passed) {
+          visitor.visit(testName, revision, PASSED);
+        }
+      }
+      if (others != null) {
+        for (Map.Entry<String, SingleTestFlakyStatsWithRevision> entry : others.entrySet()) {
+          visitor.visit(entry.getKey(), entry.getValue().getRevision(),
+              entry.getValue().getStats());
+        }
+      }
+    }
+
+    /**
+     * @return a read-only view of the names of all the tests of the run
+     */
+    public Set<String> getTestNames() {
+      final String[] passed;
+      final Map<String, SingleTestFlakyStatsWithRevision> others;
+      synchronized (this) {
+        passed = passedTests == null ? new String[0] : passedTests;
+        others = testFlakyStatsWithRevisionMap == null
+            ? new HashMap<String, SingleTestFlakyStatsWithRevision>()
+            : testFlakyStatsWithRevisionMap;
+      }
+      return new AbstractSet<String>() {
+        @Override
+        public boolean contains(Object o) {
+          return o instanceof String
+              && (Arrays.binarySearch(passed, o) >= 0 || others.containsKey(o));
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+          return Iterators.concat(Iterators.forArray(passed),
+              Iterators.unmodifiableIterator(others.keySet().iterator()));
+        }
+
+        @Override
+        public int size() {
+          return passed.length + others.size();
+        }
+      };
+    }
+
     /**
      * Is current run flaky or not. Build will be marked as unstable if there are flaky tests
      * and no failing test
@@ -222,13 +432,15 @@ public class FlakyTestResultAction implements RunAction2 {
      * @return true if there is no failing test but there are some flaky tests
      */
     public boolean isFlaked() {
-      if (testFlakyStatsWithRevisionMap == null) {
+      // the tests held sparsely passed
+      Map<String, SingleTestFlakyStatsWithRevision> others = getOtherTests();
+      if (others == null) {
         return false;
       }
 
       boolean seenFlake = false;
       for (Map.Entry<String, SingleTestFlakyStatsWithRevision>
-          singleTestFlakyStatsWithRevisionEntry : testFlakyStatsWithRevisionMap.entrySet()) {
+          singleTestFlakyStatsWithRevisionEntry : others.entrySet()) {
         if (singleTestFlakyStatsWithRevisionEntry.getValue().getStats().isFailed()) {
           return false;
         } else if (singleTestFlakyStatsWithRevisionEntry.getValue().getStats().isFlaked()) {
@@ -238,4 +450,17 @@ public class FlakyTestResultAction implements RunAction2 {
       return seenFlake;
     }
   }
+
+  /**
+   * Receives the stats of the tests of a run
+   */
+  public interface TestStatsVisitor {
+
+    /**
+     * @param testName full display name of the test
+     * @param revision the revision the test was run at
+     * @param stats stats of the test, shared between tests; not to be modified
+     */
+    void visit(String testName, String revision, SingleTestFlakyStats stats);
+  }
 }
@@ -0,0 +1,149 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.plugin;
+
+import com.google.jenkins.flakyTestHandler.junit.FlakyTestResult;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.tasks.junit.SuiteResult;
+import hudson.tasks.junit.TestResult;
+import hudson.tasks.test.AbstractTestResultAction;
+
+/**
+ * Build scoped cache of the {@link FlakyTestResult} built from the test result of a running
+ * build, so that {@link JUnitFlakyTestDataPublisher} and {@link JUnitFlakyResultArchiver} don't
+ * both parse the same reports. Entries are released when the build completes.
+ */
+@Extension
+public class FlakyTestResultCache extends RunListener<AbstractBuild> {
+
+  /**
+   * Weakly keyed, so that builds which never complete (e.g. aborted before the listener is
+   * called) don't leak their entry
+   */
+  private static final Map<AbstractBuild<?, ?>, Entry> ENTRIES =
+      new WeakHashMap<AbstractBuild<?, ?>, Entry>();
+
+  public FlakyTestResultCache() {
+    super(AbstractBuild.class);
+  }
+
+  /**
+   * Get the frozen {@link FlakyTestResult} for the given test result of a build, reusing the one
+   * built by an earlier consumer of the same build if the test result hasn't changed since and
+   * it was frozen with the same parent action
+   *
+   * @param build the build the test result belongs to
+   * @param testResult test result published by the core JUnit archiver
+   * @param parent the test result action to freeze the flaky test result with
+   * @param listener listener of this build
+   * @return the frozen flaky test result
+   */
+  static FlakyTestResult getFrozenFlakyTestResult(AbstractBuild<?, ?> build,
+      TestResult testResult, AbstractTestResultAction parent, TaskListener listener) {
+    Entry entry;
+    synchronized (ENTRIES) {
+      entry = ENTRIES.get(build);
+    }
+    if (entry != null && entry.parent == parent && entry.matches(testResult)) {
+      return entry.flakyTestResult;
+    }
+
+    // A published result is never frozen again, as its cases may already be served by the
+    // parent action it was frozen with
+    FlakyTestResult flakyTestResult = JUnitFlakyResultArchiver.createFlakyTestResult(build,
+        testResult, listener);
+    flakyTestResult.freeze(parent, build);
+    synchronized (ENTRIES) {
+      ENTRIES.put(build, new Entry(testResult, parent, flakyTestResult));
+    }
+    return flakyTestResult;
+  }
+
+  /**
+   * Get the frozen {@link FlakyTestResult} already built by an earlier consumer of the given test
+   * result of a build
+   *
+   * @return the flaky test result, or null if none was built from the same test result
+   */
+  static FlakyTestResult getCachedFlakyTestResult(AbstractBuild<?, ?> build,
+      TestResult testResult) {
+    Entry entry;
+    synchronized (ENTRIES) {
+      entry = ENTRIES.get(build);
+    }
+    return entry != null && entry.matches(testResult) ? entry.flakyTestResult : null;
+  }
+
+  // Visible for testing
+  static void release(AbstractBuild<?, ?> build) {
+    synchronized (ENTRIES) {
+      ENTRIES.remove(build);
+    }
+  }
+
+  @Override
+  public void onCompleted(AbstractBuild build, TaskListener listener) {
+    release(build);
+  }
+
+  @Override
+  public void onDeleted(AbstractBuild build) {
+    release(build);
+  }
+
+  /**
+   * A cached flaky test result, with the parent action it was frozen with and the name, id, file
+   * and number of cases of each suite of the test result it was built from. The test result
+   * passed to the archiver may have been reloaded from disk, so it is not compared by identity;
+   * merging another JUnit report into the build changes its suites.
+   */
+  private static class Entry {
+
+    private final List<String> suites;
+
+    private final AbstractTestResultAction parent;
+
+    private final FlakyTestResult flakyTestResult;
+
+    Entry(TestResult testResult, AbstractTestResultAction parent,
+        FlakyTestResult flakyTestResult) {
+      this.suites = describeSuites(testResult);
+      this.parent = parent;
+      this.flakyTestResult = flakyTestResult;
+    }
+
+    boolean matches(TestResult testResult) {
+      return suites.equals(describeSuites(testResult));
+    }
+
+    private static List<String> describeSuites(TestResult testResult) {
+      List<String> suites = new ArrayList<String>(testResult.getSuites().size());
+      for (SuiteResult suite : testResult.getSuites()) {
+        suites.add(suite.getName() + '\0' + suite.getId() + '\0' + suite.getFile() + '\0'
+            + suite.getCases().size());
+      }
+      return suites;
+    }
+  }
+}
@@ -19,6 +19,7 @@ import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
 import com.google.common.collect.Maps;
 import com.google.jenkins.flakyTestHandler.plugin.FlakyTestResultAction.FlakyRunStats;
+import com.google.jenkins.flakyTestHandler.plugin.FlakyTestResultAction.TestStatsVisitor;
 import com.google.jenkins.flakyTestHandler.plugin.deflake.DeflakeCause;
 
 import org.kohsuke.stapler.StaplerRequest;
@@ -119,51 +120,49 @@ public class HistoryAggregatedFlakyTestResultAction implements Action {
       return;
     }
 
-    Map<String, SingleTestFlakyStatsWithRevision> testFlakyStatsMap = runStats
-        .getTestFlakyStatsWithRevisionMap();
-
-    if (testFlakyStatsMap == null) {
+    if (runStats.getOtherTests() == null) {
       // Skip old build which doesn't have the map
       return;
     }
 
     if (build.getCause(DeflakeCause.class) == null) {
       // This is a non-deflake build, update allTests
-      allTests = testFlakyStatsMap.keySet();
+      allTests = runStats.getTestNames();
     }
 
-    for (Map.Entry<String, SingleTestFlakyStatsWithRevision> testFlakyStat : testFlakyStatsMap
-        .entrySet()) {
-      String testName = testFlakyStat.getKey();
-      String revision = testFlakyStat.getValue().getRevision();
-      SingleTestFlakyStats stats = testFlakyStat.getValue().getStats();
-
-      if (aggregatedTestFlakyStatsWithRevision.containsKey(testName)) {
-        Map<String, SingleTestFlakyStats> testFlakyStatMap = aggregatedTestFlakyStatsWithRevision
-            .get(testName);
-
-        if (testFlakyStatMap.containsKey(revision)) {
-          // Merge flaky stats with the same test and the same revision
-          testFlakyStatMap.get(revision).merge(stats);
-        } else {
-          // First specific revision flaky stat for a given test
-          testFlakyStatMap.put(revision, new SingleTestFlakyStats(stats));
-        }
-      } else {
-        // The first test entry
-        Map<String, SingleTestFlakyStats> testFlakyStatMap =
-            new LinkedHashMap<String, SingleTestFlakyStats>();
-        testFlakyStatMap.put(revision, new SingleTestFlakyStats(stats));
-        aggregatedTestFlakyStatsWithRevision.put(testName, testFlakyStatMap);
-
+    // Passing tests held sparsely are visited without being expanded into the map
+    runStats.visit(new TestStatsVisitor() {
+      public void visit(String testName, String revision, SingleTestFlakyStats stats) {
+        aggregateTest(testName, revision, stats);
       }
-    }
+    });
 
     aggregatedFlakyStats = Maps
         .filterKeys(Maps.transformValues(aggregatedTestFlakyStatsWithRevision,
             REVISION_STATS_MAP_TO_AGGREGATED_STATS), Predicates.in(allTests));
   }
 
+  private void aggregateTest(String testName, String revision, SingleTestFlakyStats stats) {
+    if (aggregatedTestFlakyStatsWithRevision.containsKey(testName)) {
+      Map<String, SingleTestFlakyStats> testFlakyStatMap = aggregatedTestFlakyStatsWithRevision
+          .get(testName);
+
+      if (testFlakyStatMap.containsKey(revision)) {
+        // Merge flaky stats with the same test and the same revision
+        testFlakyStatMap.get(revision).merge(stats);
+      } else {
+        // First specific revision flaky stat for a given test
+        testFlakyStatMap.put(revision, new SingleTestFlakyStats(stats));
+      }
+    } else {
+      // The first test entry
+      Map<String, SingleTestFlakyStats> testFlakyStatMap =
+          new LinkedHashMap<String, SingleTestFlakyStats>();
+      testFlakyStatMap.put(revision, new SingleTestFlakyStats(stats));
+      aggregatedTestFlakyStatsWithRevision.put(testName, testFlakyStatMap);
+    }
+  }
+
   public Map<String, Map<String, SingleTestFlakyStats>> getAggregatedTestFlakyStatsWithRevision() {
     return aggregatedTestFlakyStatsWithRevision;
   }
@@ -335,8 +334,17 @@ public class HistoryAggregatedFlakyTestResultAction implements Action {
      */
     public SingleTestFlakyStatsWithRevision(SingleTestFlakyStats stats, AbstractBuild build) {
       this.stats = stats;
-      revision = Integer.toString(build.getNumber());
+      this.revision = getBuildRevision(build);
+    }
 
+    /**
+     * Get the revision a build was run at. Resolve it once per build rather than once per test,
+     * and share it between the stats of the tests of the build.
+     *
+     * @param build The {@link hudson.model.AbstractBuild} object to get SCM information from.
+     * @return the git Sha1 string if using GIT for scm, otherwise the build number
+     */
+    public static String getBuildRevision(AbstractBuild build) {
       SCM scm = build.getProject().getScm();
       if (scm != null && scm instanceof GitSCM) {
         GitSCM gitSCM = (GitSCM) scm;
@@ -344,10 +352,11 @@ public class HistoryAggregatedFlakyTestResultAction implements Action {
         if (buildData != null) {
           Revision gitRevision = buildData.getLastBuiltRevision();
           if (gitRevision != null) {
-            revision = gitRevision.getSha1String();
+            return gitRevision.getSha1String();
           }
         }
       }
+      return Integer.toString(build.getNumber());
     }
 
     public SingleTestFlakyStatsWithRevision(SingleTestFlakyStats stats, String revision) {
@@ -14,27 +14,46 @@
  */
 package com.google.jenkins.flakyTestHandler.plugin;
 
+import com.google.common.cache.CacheStats;
+import com.google.jenkins.flakyTestHandler.junit.DetailBudget;
+import com.google.jenkins.flakyTestHandler.junit.FlakyStatsExtractor;
+import com.google.jenkins.flakyTestHandler.junit.FlakyTestResult;
+import com.google.jenkins.flakyTestHandler.junit.ReportCache;
+import com.google.jenkins.flakyTestHandler.junit.ReportFileLister;
+import com.google.jenkins.flakyTestHandler.junit.ReportScanStats;
+import com.google.jenkins.flakyTestHandler.plugin.HistoryAggregatedFlakyTestResultAction.SingleTestFlakyStatsWithRevision;
+
 import net.sf.json.JSONObject;
 
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import hudson.Extension;
+import hudson.FilePath;
 import hudson.Launcher;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.Action;
 import hudson.model.BuildListener;
 import hudson.model.Result;
+import hudson.model.TaskListener;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.BuildStepMonitor;
 import hudson.tasks.Publisher;
 import hudson.tasks.Recorder;
+import hudson.tasks.junit.JUnitResultArchiver;
+import hudson.tasks.junit.TestResult;
+import hudson.util.FormValidation;
+import jenkins.model.Jenkins;
 
 /**
  * Record flaky information to get flaky stats for all the tests
@@ -95,9 +114,264 @@ public class JUnitFlakyResultArchiver extends Recorder implements
     return true;
   }
 
+  /**
+   * Build a {@link FlakyTestResult} from the test result of a build, with the configured
+   * report parsing settings
+   *
+   * @param build the build the test result belongs to
+   * @param testResult test result published by the core JUnit archiver
+   * @param listener listener of this build, to report the report files read to
+   * @return the flaky test result, not frozen yet
+   */
+  static FlakyTestResult createFlakyTestResult(AbstractBuild<?, ?> build, TestResult testResult,
+      TaskListener listener) {
+    DescriptorImpl descriptor = getDescriptorImpl();
+    ReportFileLister lister = createReportFileLister(build);
+    FlakyTestResult flakyTestResult;
+    if (descriptor == null) {
+      flakyTestResult = new FlakyTestResult(testResult, 1, null, DetailBudget.DEFAULT, lister);
+    } else {
+      flakyTestResult = new FlakyTestResult(testResult, descriptor.getParseThreads(),
+          descriptor.isParseOnAgent() ? build.getWorkspace() : null, descriptor.getDetailBudget(),
+          lister);
+    }
+    logReportScanStats(listener, flakyTestResult.getReportScanStats());
+    return flakyTestResult;
+  }
+
+  /**
+   * Get the flaky stats of all the tests of a build, with the configured report parsing settings,
+   * without building a {@link FlakyTestResult}
+   *
+   * @param build the build the test result belongs to
+   * @param revision the revision of the build, shared by the stats of all the tests
+   * @param testResult test result published by the core JUnit archiver
+   * @param listener listener of this build, to report the report files read to
+   * @return the flaky stats of each test, keyed by full display name
+   */
+  static Map<String, SingleTestFlakyStatsWithRevision> createFlakyStatsMap(
+      AbstractBuild<?, ?> build, String revision, TestResult testResult, TaskListener listener) {
+    DescriptorImpl descriptor = getDescriptorImpl();
+    ReportScanStats stats = new ReportScanStats();
+    Map<String, SingleTestFlakyStatsWithRevision> statsMap;
+    ReportFileLister lister = createReportFileLister(build);
+    if (descriptor == null) {
+      statsMap = FlakyStatsExtractor.extract(testResult, revision, 1, null, stats, lister);
+    } else {
+      statsMap = FlakyStatsExtractor.extract(testResult, revision, descriptor.getParseThreads(),
+          descriptor.isParseOnAgent() ? build.getWorkspace() : null, stats, lister);
+    }
+    logReportScanStats(listener, stats);
+    return statsMap;
+  }
+
+  /**
+   * Get a lister of all the report files the core JUnit archiver of a build parsed, including
+   * the ones whose suites it merged into suites of other files. Nothing is listed here: the files
+   * are listed where they are scanned for reruns, in the same call.
+   *
+   * @param build the build the test result belongs to
+   * @return the lister, or null if the report files cannot be listed
+   */
+  static ReportFileLister createReportFileLister(AbstractBuild<?, ?> build) {
+    JUnitResultArchiver archiver = build.getProject().getPublishersList()
+        .get(JUnitResultArchiver.class);
+    if (archiver == null) {
+      LOGGER.log(Level.INFO, "No JUnit archiver in " + build.getProject().getFullName()
+          + ", only the first report file of each suite is scanned for reruns");
+      return null;
+    }
+    FilePath workspace = build.getWorkspace();
+    if (workspace == null) {
+      return null;
+    }
+    String testResults = archiver.getTestResults();
+    if (testResults.indexOf('$') >= 0) {
+      try {
+        testResults = build.getEnvironment(TaskListener.NULL).expand(testResults);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        LOGGER.log(Level.WARNING, "Interrupted while expanding the report files of " + build, e);
+        return null;
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "Failed to expand the report files of " + build, e);
+        return null;
+      }
+    }
+    return new ReportFileLister(workspace.getRemote(), testResults, build.getTimeInMillis());
+  }
+
+  private static void logReportScanStats(TaskListener listener, ReportScanStats stats) {
+    if (listener != null) {
+      listener.getLogger().println("[Flaky Test Handler] " + stats);
+    }
+  }
+
+  /**
+   * @return the descriptor, or null if Jenkins is not available
+   */
+  private static DescriptorImpl getDescriptorImpl() {
+    Jenkins jenkins = Jenkins.getInstance();
+    return jenkins == null ? null : jenkins.getDescriptorByType(DescriptorImpl.class);
+  }
+
+  private static final Logger LOGGER = Logger.getLogger(JUnitFlakyResultArchiver.class.getName());
+
   @Extension
   public static class DescriptorImpl extends BuildStepDescriptor<Publisher> {
 
+    /**
+     * Number of threads to read test reports with, 1 reads them on the build thread
+     */
+    private int parseThreads = 1;
+
+    /**
+     * Whether to read test reports on the node which owns the workspace, and only send a
+     * summary of the reruns back to the master
+     */
+    private boolean parseOnAgent;
+
+    /**
+     * Maximal number of report files whose reruns are kept in the {@link ReportCache},
+     * 0 disables the cache
+     */
+    private int reportCacheSize;
+
+    /**
+     * Maximal number of characters kept of each message, stack trace, stdout and stderr of
+     * each rerun, 0 for no limit
+     */
+    private int maxRunDetailLength = DetailBudget.DEFAULT_RUN_LIMIT;
+
+    /**
+     * Maximal number of characters kept of the rerun details of each test case, 0 for no limit
+     */
+    private int maxCaseDetailLength = DetailBudget.DEFAULT_CASE_LIMIT;
+
+    /**
+     * Maximal number of characters kept of the rerun details of each build, 0 for no limit
+     */
+    private int maxBuildDetailLength = DetailBudget.DEFAULT_BUILD_LIMIT;
+
+    /**
+     * Maximal number of tests whose flaky stats are kept in the {@link FlakyRunStatsCache},
+     * 0 disables the cache
+     */
+    private int flakyStatsCacheSize = (int) FlakyRunStatsCache.DEFAULT_MAX_WEIGHT;
+
+    public DescriptorImpl() {
+      load();
+      ReportCache.setMaxSize(reportCacheSize);
+      FlakyRunStatsCache.setMaxWeight(flakyStatsCacheSize);
+    }
+
+    public int getParseThreads() {
+      return Math.max(1, parseThreads);
+    }
+
+    public void setParseThreads(int parseThreads) {
+      this.parseThreads = parseThreads;
+    }
+
+    public boolean isParseOnAgent() {
+      return parseOnAgent;
+    }
+
+    public void setParseOnAgent(boolean parseOnAgent) {
+      this.parseOnAgent = parseOnAgent;
+    }
+
+    public int getReportCacheSize() {
+      return reportCacheSize;
+    }
+
+    public void setReportCacheSize(int reportCacheSize) {
+      this.reportCacheSize = reportCacheSize;
+    }
+
+    public int getMaxRunDetailLength() {
+      return maxRunDetailLength;
+    }
+
+    public void setMaxRunDetailLength(int maxRunDetailLength) {
+      this.maxRunDetailLength = maxRunDetailLength;
+    }
+
+    public int getMaxCaseDetailLength() {
+      return maxCaseDetailLength;
+    }
+
+    public void setMaxCaseDetailLength(int maxCaseDetailLength) {
+      this.maxCaseDetailLength = maxCaseDetailLength;
+    }
+
+    public int getMaxBuildDetailLength() {
+      return maxBuildDetailLength;
+    }
+
+    public void setMaxBuildDetailLength(int maxBuildDetailLength) {
+      this.maxBuildDetailLength = maxBuildDetailLength;
+    }
+
+    public int getFlakyStatsCacheSize() {
+      return flakyStatsCacheSize;
+    }
+
+    public void setFlakyStatsCacheSize(int flakyStatsCacheSize) {
+      this.flakyStatsCacheSize = flakyStatsCacheSize;
+    }
+
+    /**
+     * @return the usage of the {@link FlakyRunStatsCache}, shown below its size
+     */
+    public String getFlakyStatsCacheUsage() {
+      CacheStats stats = FlakyRunStatsCache.getStats();
+      return FlakyRunStatsCache.size() + " builds cached, " + stats.hitCount() + " hits, "
+          + stats.missCount() + " misses, " + stats.evictionCount() + " evictions";
+    }
+
+    /**
+     * @return the limits on the rerun details kept for each build
+     */
+    public DetailBudget getDetailBudget() {
+      return new DetailBudget(Math.max(0, maxRunDetailLength), Math.max(0, maxCaseDetailLength),
+          Math.max(0, maxBuildDetailLength));
+    }
+
+    @Override
+    public boolean configure(StaplerRequest req, JSONObject json)
+        throws hudson.model.Descriptor.FormException {
+      req.bindJSON(this, json);
+      ReportCache.setMaxSize(reportCacheSize);
+      FlakyRunStatsCache.setMaxWeight(flakyStatsCacheSize);
+      save();
+      return true;
+    }
+
+    public FormValidation doCheckParseThreads(@QueryParameter String value) {
+      return FormValidation.validatePositiveInteger(value);
+    }
+
+    public FormValidation doCheckReportCacheSize(@QueryParameter String value) {
+      return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    public FormValidation doCheckFlakyStatsCacheSize(@QueryParameter String value) {
+      return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    public FormValidation doCheckMaxRunDetailLength(@QueryParameter String value) {
+      return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    public FormValidation doCheckMaxCaseDetailLength(@QueryParameter String value) {
+      return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    public FormValidation doCheckMaxBuildDetailLength(@QueryParameter String value) {
+      return FormValidation.validateNonNegativeInteger(value);
+    }
+
     @Override
     public String getDisplayName() {
       return "Publish JUnit flaky stats";
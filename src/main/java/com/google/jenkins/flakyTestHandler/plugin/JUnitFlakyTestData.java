@@ -19,6 +19,7 @@ import com.google.jenkins.flakyTestHandler.junit.FlakyCaseResult;
 import com.google.jenkins.flakyTestHandler.junit.FlakyClassResult;
 import com.google.jenkins.flakyTestHandler.junit.FlakyPackageResult;
 import com.google.jenkins.flakyTestHandler.junit.FlakyTestResult;
+import com.google.jenkins.flakyTestHandler.junit.RunStdioFile;
 
 import java.util.Collection;
 import java.util.Collections;
@@ -58,7 +59,12 @@ public class JUnitFlakyTestData extends TestResultAction.Data {
 
     ActionableFlakyTestObject flakyTestObject = testCaseFlakyInfoMap.get(testObject.getId());
     if (flakyTestObject != null) {
-      return Collections.singletonList(flakyTestObject.getTestAction());
+      TestAction action = flakyTestObject.getTestAction();
+      if (action instanceof JUnitFlakyTestDataAction && testObject.getOwner() != null) {
+        ((JUnitFlakyTestDataAction) action).setStdioFile(
+            RunStdioFile.of(testObject.getOwner().getRootDir()));
+      }
+      return Collections.singletonList(action);
     }
     return Collections.emptyList();
   }
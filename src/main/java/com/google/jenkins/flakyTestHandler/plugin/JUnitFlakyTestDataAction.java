@@ -18,7 +18,11 @@ import com.google.jenkins.flakyTestHandler.junit.FlakyCaseResult.FlakyRunInforma
 
 import org.jvnet.localizer.Localizable;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import hudson.model.HealthReport;
 import hudson.tasks.junit.TestAction;
@@ -40,11 +44,47 @@ public class JUnitFlakyTestDataAction extends TestAction {
    */
   private boolean isFailed;
 
+  /**
+   * The {@link com.google.jenkins.flakyTestHandler.junit.RunStdioFile} of the build
+   */
+  private File stdioFile;
+
   public JUnitFlakyTestDataAction(List<FlakyRunInformation> flakyRuns, boolean isFailed) {
     this.flakyRuns = flakyRuns;
     this.isFailed = isFailed;
   }
 
+  /**
+   * @param stdioFile the file the stdout and stderr of the reruns are stored in
+   */
+  public void setStdioFile(File stdioFile) {
+    this.stdioFile = stdioFile;
+  }
+
+  /**
+   * @return the stdout of the given rerun, read from the stdio file of the build if needed
+   */
+  public String getFlakyStdOut(FlakyRunInformation flakyRun) {
+    try {
+      return flakyRun.getFlakyStdOut(stdioFile);
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to read rerun stdout from " + stdioFile, e);
+      return null;
+    }
+  }
+
+  /**
+   * @return the stderr of the given rerun, read from the stdio file of the build if needed
+   */
+  public String getFlakyStdErr(FlakyRunInformation flakyRun) {
+    try {
+      return flakyRun.getFlakyStdErr(stdioFile);
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to read rerun stderr from " + stdioFile, e);
+      return null;
+    }
+  }
+
   /**
    * Returns text with annotations.
    */
@@ -96,4 +136,6 @@ public class JUnitFlakyTestDataAction extends TestAction {
     return healthReport.getIconUrl("16x16");
   }
 
+  private static final Logger LOGGER = Logger.getLogger(JUnitFlakyTestDataAction.class.getName());
+
 }
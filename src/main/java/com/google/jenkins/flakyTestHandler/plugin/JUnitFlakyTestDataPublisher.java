@@ -15,6 +15,7 @@
 package com.google.jenkins.flakyTestHandler.plugin;
 
 import com.google.jenkins.flakyTestHandler.junit.FlakyTestResult;
+import com.google.jenkins.flakyTestHandler.junit.RunStdioFile;
 
 import org.kohsuke.stapler.DataBoundConstructor;
 
@@ -45,8 +46,10 @@ public class JUnitFlakyTestDataPublisher
   public TestResultAction.Data getTestData(AbstractBuild<?, ?> abstractBuild, Launcher launcher,
       BuildListener buildListener, TestResult testResult)
       throws IOException, InterruptedException {
-    FlakyTestResult flakyTestResult = new FlakyTestResult(testResult);
-    flakyTestResult.freeze(abstractBuild.getTestResultAction(), abstractBuild);
+    FlakyTestResult flakyTestResult = FlakyTestResultCache.getFrozenFlakyTestResult(
+        abstractBuild, testResult, abstractBuild.getTestResultAction(), buildListener);
+    // rerun output is only read back when a test page is displayed
+    RunStdioFile.store(abstractBuild.getRootDir(), flakyTestResult);
     return new JUnitFlakyTestData(flakyTestResult);
   }
 
@@ -0,0 +1,99 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.junit;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.jenkins.flakyTestHandler.plugin.HistoryAggregatedFlakyTestResultAction.SingleTestFlakyStats;
+import com.google.jenkins.flakyTestHandler.plugin.HistoryAggregatedFlakyTestResultAction.SingleTestFlakyStatsWithRevision;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.File;
+import java.util.Map;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.tasks.junit.TestResult;
+
+/**
+ * Test that the stats only path gives the same flaky stats as a full {@link FlakyTestResult}
+ */
+public class FlakyStatsExtractorTest {
+
+  @Rule
+  public JenkinsRule jenkins = new JenkinsRule();
+
+  @Test
+  public void testStatsMatchFlakyTestResult() throws Exception {
+    FreeStyleProject project = jenkins.createFreeStyleProject("project");
+    FreeStyleBuild build = new FreeStyleBuild(project);
+
+    String[] reports = {"flaky-reports/flaky-report-1.xml", "junit-report-6700.xml",
+        "junit-report-1233.xml", "junit-report-nested-testsuites.xml"};
+    for (String report : reports) {
+      TestResult coreResult = new TestResult();
+      coreResult.parse(getDataFile(report));
+
+      FlakyTestResult flakyTestResult = new FlakyTestResult(coreResult);
+      flakyTestResult.freeze(null, build);
+      Map<String, SingleTestFlakyStatsWithRevision> expected =
+          flakyTestResult.getTestFlakyStatsMap();
+      Map<String, SingleTestFlakyStatsWithRevision> actual =
+          FlakyStatsExtractor.extract(coreResult,
+              SingleTestFlakyStatsWithRevision.getBuildRevision(build), 1, null,
+              new ReportScanStats());
+
+      assertEquals(report, expected.keySet(), actual.keySet());
+      for (Map.Entry<String, SingleTestFlakyStatsWithRevision> entry : expected.entrySet()) {
+        SingleTestFlakyStats expectedStats = entry.getValue().getStats();
+        SingleTestFlakyStats actualStats = actual.get(entry.getKey()).getStats();
+        assertEquals(entry.getKey(), expectedStats.getPass(), actualStats.getPass());
+        assertEquals(entry.getKey(), expectedStats.getFail(), actualStats.getFail());
+        assertEquals(entry.getKey(), expectedStats.getFlake(), actualStats.getFlake());
+        assertEquals(entry.getValue().getRevision(), actual.get(entry.getKey()).getRevision());
+      }
+    }
+  }
+
+  /**
+   * The reruns of a suite spread over several report files are counted when all the report files
+   * are listed.
+   */
+  @Test
+  public void testStatsOfSuiteMergedFromSeveralFiles() throws Exception {
+    File first = getDataFile("flaky-reports/flaky-report-split-1.xml");
+    File second = getDataFile("flaky-reports/flaky-report-split-2.xml");
+    TestResult coreResult = new TestResult();
+    coreResult.parse(first);
+    coreResult.parse(second);
+    ReportFileLister lister =
+        new ReportFileLister(first.getParent(), "flaky-report-split-*.xml", 0);
+
+    Map<String, SingleTestFlakyStatsWithRevision> stats = FlakyStatsExtractor.extract(
+        coreResult, "revision", 1, null, new ReportScanStats(), lister);
+
+    assertEquals(4, stats.size());
+    assertEquals(1, stats.get("test.foo.bar.FirstTest.testFirst").getStats().getFail());
+    assertEquals(2, stats.get("test.foo.bar.SecondTest.testSecond").getStats().getFail());
+    assertEquals(0, stats.get("test.foo.bar.SecondTest.testStable").getStats().getFail());
+  }
+
+  private File getDataFile(String name) throws Exception {
+    return new File(FlakyStatsExtractorTest.class.getResource(name).toURI());
+  }
+}
@@ -18,14 +18,19 @@ import com.google.jenkins.flakyTestHandler.junit.FlakyCaseResult.FlakyRunInforma
 
 import junit.framework.TestCase;
 
+import org.apache.commons.io.FileUtils;
 import org.jvnet.hudson.test.Bug;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.Writer;
 import java.net.URISyntaxException;
 import java.util.List;
+import java.util.zip.GZIPOutputStream;
 
 import edu.umd.cs.findbugs.annotations.SuppressWarnings;
 import hudson.XmlFile;
@@ -333,4 +338,77 @@ public class FlakySuiteResultTest extends TestCase {
     assertEquals("Class name is incorrect", "test.foo.bar.ProjectSettingsTest",
         cases.get(4).getClassName());
   }
+
+  /**
+   * Compressed reports give the same suites as the uncompressed ones.
+   */
+  public void testGzipReports() throws Exception {
+    String[] reports = {"flaky-reports/flaky-report-1.xml", "junit-report-nested-testsuites.xml"};
+    for (String report : reports) {
+      File plain = getDataFile(report);
+      File compressed = File.createTempFile("TEST-", ".xml.gz");
+      try {
+        OutputStream out = new GZIPOutputStream(new FileOutputStream(compressed));
+        try {
+          FileUtils.copyFile(plain, out);
+        } finally {
+          out.close();
+        }
+
+        List<FlakySuiteResult> expected = FlakySuiteResult.parse(plain, false);
+        List<FlakySuiteResult> actual = FlakySuiteResult.parse(compressed, false);
+        assertEquals(report, expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+          assertEquals(report, expected.get(i).getName(), actual.get(i).getName());
+          assertEquals(report, expected.get(i).getCases().size(),
+              actual.get(i).getCases().size());
+          for (int j = 0; j < expected.get(i).getCases().size(); j++) {
+            assertEquals(report, expected.get(i).getCases().get(j).getFlakyRuns().size(),
+                actual.get(i).getCases().get(j).getFlakyRuns().size());
+          }
+        }
+      } finally {
+        compressed.delete();
+      }
+    }
+  }
+
+  /**
+   * Surefire output next to a compressed report is read compressed too, and trimmed the same way.
+   */
+  public void testSuiteStdioTrimmingSurefireGzip() throws Exception {
+    File data = File.createTempFile("TEST-", ".xml.gz");
+    File data2 = new File(data.getParentFile(),
+        data.getName().replaceFirst("^TEST-(.+)[.]xml[.]gz$", "$1-output.txt.gz"));
+    try {
+      PrintWriter pw = new PrintWriter(new OutputStreamWriter(
+          new GZIPOutputStream(new FileOutputStream(data))));
+      try {
+        pw.println("<testsuites name='x'>");
+        pw.println("<testsuite failures='0' errors='0' tests='1' name='x'>");
+        pw.println("<testcase name='x' classname='x'/>");
+        pw.println("</testsuite>");
+        pw.println("</testsuites>");
+      } finally {
+        pw.close();
+      }
+      pw = new PrintWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(data2))));
+      try {
+        pw.println("First line is intact.");
+        for (int i = 0; i < 100; i++) {
+          pw.println("Line #" + i + " might be elided.");
+        }
+        pw.println("Last line is intact.");
+      } finally {
+        pw.close();
+      }
+      FlakySuiteResult sr = parseOne(data);
+      assertEquals(sr.getStdout(), 1030, sr.getStdout().length());
+      assertTrue(sr.getStdout().startsWith("First line is intact."));
+      assertTrue(sr.getStdout().trim().endsWith("Last line is intact."));
+    } finally {
+      data.delete();
+      data2.delete();
+    }
+  }
 }
@@ -14,6 +14,7 @@
  */
 package com.google.jenkins.flakyTestHandler.junit;
 
+import com.google.jenkins.flakyTestHandler.junit.FlakyCaseResult.FlakyRunInformation;
 import com.thoughtworks.xstream.XStream;
 
 import junit.framework.TestCase;
@@ -21,11 +22,19 @@ import junit.framework.TestCase;
 import org.jvnet.hudson.test.Bug;
 
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
+import hudson.FilePath;
 import hudson.XmlFile;
 import hudson.util.HeapSpaceStringConverter;
 import hudson.util.XStream2;
@@ -138,6 +147,159 @@ public class FlakyTestResultTest extends TestCase {
     assertEquals("Wrong duration for test result", 1.0, testResult.getDuration(), 0.01);
   }
 
+  /**
+   * Suites spread over two files are merged through the index of suites by name and id, which
+   * keeps merging linear in the number of suites; it used to be quadratic.
+   */
+  public void testManySuitesAreMergedThroughIndex() throws IOException {
+    int suiteCount = 1000;
+    File first = writeManySuitesReport("first", suiteCount, "2014-01-01T00:00:00");
+    File second = writeManySuitesReport("second", suiteCount, "2014-01-01T00:00:01");
+    try {
+      FlakyTestResult testResult = new FlakyTestResult();
+      testResult.parse(first);
+      testResult.parse(second);
+      testResult.tally();
+
+      assertEquals("Wrong number of testsuites", suiteCount, testResult.getSuites().size());
+      assertEquals("Wrong number of test cases", 2 * suiteCount, testResult.getTotalCount());
+      for (FlakySuiteResult suite : testResult.getSuites()) {
+        assertSame(suite, testResult.getIndexedSuite(suite.getName(), suite.getId()));
+        assertEquals(2, suite.getCases().size());
+        for (FlakyCaseResult caseResult : suite.getCases()) {
+          assertSame(suite, caseResult.getSuiteResult());
+        }
+      }
+    } finally {
+      first.delete();
+      second.delete();
+    }
+  }
+
+  /**
+   * Tallying a frozen result again, as done each time its parent action is set, keeps the tree of
+   * packages and classes built when it was frozen; it is only rebuilt when suites are added.
+   */
+  public void testRetallyDoesNotRebuildTree() throws IOException, URISyntaxException {
+    int suiteCount = 2000;
+    File report = writeManySuitesReport("retally", suiteCount, "2014-01-01T00:00:00");
+    try {
+      FlakyTestResult testResult = new FlakyTestResult();
+      testResult.parse(report);
+
+      testResult.freeze(null, null);
+      FlakyPackageResult pkg = testResult.byPackage("pkg");
+      FlakyClassResult cls = pkg.getClassResult("Suite0");
+      List<FlakyCaseResult> flakyTests = testResult.getFlakyTests();
+      Collection<?> passed = pkg.getPassedTests();
+
+      for (int i = 0; i < 10; i++) {
+        testResult.tally();
+      }
+
+      assertSame(cls, testResult.byPackage("pkg").getClassResult("Suite0"));
+      assertSame(pkg, testResult.byPackage("pkg"));
+      assertSame(flakyTests, testResult.getFlakyTests());
+      assertEquals(suiteCount, testResult.getTotalCount());
+      assertEquals(suiteCount, pkg.getPassCount());
+      assertSame(passed, pkg.getPassedTests());
+      assertEquals(suiteCount, passed.size());
+      assertTrue(pkg.getFailedTests().isEmpty());
+
+      // adding suites rebuilds the tree
+      testResult.parse(getDataFile("flaky-reports/flaky-report-1.xml"));
+      testResult.tally();
+      assertNotSame(flakyTests, testResult.getFlakyTests());
+      assertEquals(suiteCount + 5, testResult.getTotalCount());
+    } finally {
+      report.delete();
+    }
+  }
+
+  /**
+   * Safe names are unique among siblings and assigned when the tree is built.
+   */
+  public void testSafeNamesAreUnique() throws IOException {
+    File report = File.createTempFile("safenames", ".xml");
+    PrintWriter pw = new PrintWriter(new FileWriter(report));
+    try {
+      pw.println("<testsuite name='Suite'>");
+      for (String name : Arrays.asList("same", "same", "same_2", "same", "param[0]")) {
+        pw.println("<testcase classname='pkg.Suite' name='" + name + "' time='0.001'/>");
+      }
+      pw.println("</testsuite>");
+    } finally {
+      pw.close();
+    }
+    FlakyTestResult testResult = new FlakyTestResult();
+    testResult.parse(report);
+    report.delete();
+    testResult.freeze(null, null);
+
+    FlakyClassResult classResult = testResult.byPackage("pkg").getClassResult("Suite");
+    assertEquals("pkg", testResult.byPackage("pkg").getSafeName());
+    assertEquals("Suite", classResult.getSafeName());
+    List<String> safeNames = new ArrayList<String>();
+    for (FlakyCaseResult c : classResult.getChildren()) {
+      safeNames.add(c.getSafeName());
+      assertSame(c, classResult.getCaseResult(c.getSafeName()));
+    }
+    // cases are sorted by name when frozen
+    assertEquals(Arrays.asList("param_0_", "same", "same_2", "same_3", "same_2_2"), safeNames);
+    assertNull(classResult.getCaseResult("same_4"));
+  }
+
+  private static File writeManySuitesReport(String prefix, int suiteCount, String timestamp)
+      throws IOException {
+    File report = File.createTempFile(prefix, ".xml");
+    PrintWriter pw = new PrintWriter(new FileWriter(report));
+    try {
+      pw.println("<testsuites>");
+      for (int i = 0; i < suiteCount; i++) {
+        pw.println("<testsuite name='Suite" + i + "' timestamp='" + timestamp + "'>");
+        pw.println("<testcase classname='pkg.Suite" + i + "' name='" + prefix + "' time='0.001'/>");
+        pw.println("</testsuite>");
+      }
+      pw.println("</testsuites>");
+    } finally {
+      pw.close();
+    }
+    return report;
+  }
+
+  /**
+   * All the tests are the failed, flaky and passed ones, in that order.
+   */
+  public void testAllTestsListsFailedFlakyAndPassedTests() throws IOException, URISyntaxException {
+    FlakyTestResult testResult = new FlakyTestResult();
+    testResult.parse(getDataFile("flaky-reports/flaky-report-1.xml"));
+    testResult.parse(getDataFile("eclipse-plugin-test-report.xml"));
+    testResult.tally();
+
+    for (FlakyCaseResult c : testResult.getFailedTests()) {
+      assertFalse(c.isPassed());
+    }
+    for (FlakyCaseResult c : testResult.getFlakyTests()) {
+      assertTrue(c.isFlaked());
+    }
+    assertEquals(testResult.getTotalCount() - testResult.getSkipCount(),
+        testResult.getAllTests().size());
+    List<FlakyCaseResult> expected = new ArrayList<FlakyCaseResult>();
+    expected.addAll(testResult.getFailedTests());
+    expected.addAll(testResult.getFlakyTests());
+    for (Object c : testResult.getPassedTests()) {
+      expected.add((FlakyCaseResult) c);
+    }
+    assertEquals(expected, testResult.getAllTests());
+    Iterator<FlakyCaseResult> allTests = testResult.iterateAllTests();
+    for (FlakyCaseResult c : expected) {
+      assertSame(c, allTests.next());
+    }
+    assertFalse(allTests.hasNext());
+    assertEquals(1, testResult.getFlakyTests().size());
+    assertEquals("experimentsWithJavaElements", testResult.getFlakyTests().get(0).getName());
+  }
+
   /**
    * Test parsing of test reports with flaky tests information. More testing of contents of flaky
    * tests is in FlakySuiteResultTest
@@ -154,6 +316,521 @@ public class FlakyTestResultTest extends TestCase {
     assertEquals("Wrong number of flaky test cases", 1, testResult.getFlakyTests().size());
   }
 
+  /**
+   * Parsing on several threads must merge and discard suites exactly like parsing sequentially.
+   */
+  public void testParallelParseMatchesSequentialParse() throws IOException, URISyntaxException {
+    List<File> reportFiles = Arrays.asList(
+        getDataFile("JENKINS-12457/TestSuite_a1.xml"),
+        getDataFile("JENKINS-12457/TestSuite_a2.xml"),
+        getDataFile("JENKINS-12457/TestSuite_b.xml"),
+        getDataFile("JENKINS-12457/TestSuite_b_duplicate.xml"),
+        getDataFile("JENKINS-13214/27449.xml"),
+        getDataFile("JENKINS-13214/27540.xml"),
+        getDataFile("JENKINS-13214/29734.xml"),
+        getDataFile("flaky-reports/flaky-report-1.xml"),
+        getDataFile("eclipse-plugin-test-report.xml"));
+
+    FlakyTestResult sequential = new FlakyTestResult();
+    sequential.parse(0, reportFiles);
+    sequential.tally();
+
+    FlakyTestResult parallel = new FlakyTestResult();
+    parallel.setParseThreads(4);
+    parallel.parse(0, reportFiles);
+    parallel.tally();
+
+    assertEquals(sequential.getTotalCount(), parallel.getTotalCount());
+    assertEquals(sequential.getFailCount(), parallel.getFailCount());
+    assertEquals(sequential.getFlakyTests().size(), parallel.getFlakyTests().size());
+    assertEquals(sequential.getDuration(), parallel.getDuration(), 0.0001);
+
+    List<FlakySuiteResult> sequentialSuites = new ArrayList<FlakySuiteResult>(sequential.getSuites());
+    List<FlakySuiteResult> parallelSuites = new ArrayList<FlakySuiteResult>(parallel.getSuites());
+    assertEquals(sequentialSuites.size(), parallelSuites.size());
+    for (int i = 0; i < sequentialSuites.size(); i++) {
+      assertEquals(sequentialSuites.get(i).getName(), parallelSuites.get(i).getName());
+      assertEquals(sequentialSuites.get(i).getFile(), parallelSuites.get(i).getFile());
+      assertEquals(sequentialSuites.get(i).getCases().size(),
+          parallelSuites.get(i).getCases().size());
+    }
+  }
+
+  /**
+   * Building from a core {@link hudson.tasks.junit.TestResult} reuses its suites and cases and
+   * only scans the report files for reruns.
+   */
+  public void testFlakyTestReportFromCoreTestResult() throws IOException, URISyntaxException {
+    hudson.tasks.junit.TestResult coreResult = new hudson.tasks.junit.TestResult();
+    coreResult.parse(getDataFile("flaky-reports/flaky-report-1.xml"));
+
+    FlakyTestResult testResult = new FlakyTestResult(coreResult);
+    testResult.tally();
+
+    assertEquals("Wrong number of testsuites", 1, testResult.getSuites().size());
+    assertEquals("Wrong number of test cases", 5, testResult.getTotalCount());
+    assertEquals("Wrong number of passing test cases", 3, testResult.getPassCount());
+    assertEquals("Wrong number of failing test cases", 1, testResult.getFailCount());
+    assertEquals("Wrong number of flaky test cases", 1, testResult.getFlakyTests().size());
+
+    FlakyCaseResult flakyCase = testResult.getFlakyTests().get(0);
+    assertEquals("experimentsWithJavaElements", flakyCase.getName());
+    assertEquals(2, flakyCase.getFlakyRuns().size());
+    assertEquals("flaky failure 1", flakyCase.getFlakyRuns().get(0).getFlakyErrorDetails());
+    assertEquals("error system out", flakyCase.getFlakyRuns().get(1).getFlakyStdOut());
+
+    FlakyCaseResult failedCase = testResult.getFailedTests().get(0);
+    assertEquals("testGetBundle", failedCase.getName());
+    assertEquals(2, failedCase.getFlakyRuns().size());
+    assertEquals("flaky stacktrace 2",
+        failedCase.getFlakyRuns().get(0).getFlakyErrorStackTrace().trim());
+    assertEquals("failure system out", failedCase.getStdout());
+  }
+
+  /**
+   * Scanning reports through the workspace gives the same reruns as scanning them locally.
+   */
+  public void testFlakyTestReportScannedThroughWorkspace() throws IOException, URISyntaxException {
+    File report = getDataFile("flaky-reports/flaky-report-1.xml");
+    hudson.tasks.junit.TestResult coreResult = new hudson.tasks.junit.TestResult();
+    coreResult.parse(report);
+
+    FlakyTestResult testResult = new FlakyTestResult(coreResult, 2,
+        new FilePath(report.getParentFile()));
+    testResult.tally();
+
+    assertEquals("Wrong number of test cases", 5, testResult.getTotalCount());
+    assertEquals("Wrong number of flaky test cases", 1, testResult.getFlakyTests().size());
+    assertEquals(2, testResult.getFlakyTests().get(0).getFlakyRuns().size());
+    assertEquals(2, testResult.getFailedTests().get(0).getFlakyRuns().size());
+  }
+
+  /**
+   * The core JUnit archiver merges a suite spread over several report files into the suite of
+   * the first file; the reruns of the other files are found when all the report files are listed.
+   */
+  public void testRerunsOfSuiteMergedFromSeveralFiles() throws Exception {
+    File first = getDataFile("flaky-reports/flaky-report-split-1.xml");
+    File second = getDataFile("flaky-reports/flaky-report-split-2.xml");
+    hudson.tasks.junit.TestResult coreResult = new hudson.tasks.junit.TestResult();
+    coreResult.parse(first);
+    coreResult.parse(second);
+    assertEquals("Suites should be merged", 1, coreResult.getSuites().size());
+    ReportFileLister lister =
+        new ReportFileLister(first.getParent(), "flaky-report-split-*.xml", 0);
+
+    // the files are listed on the node, in the same call as the scan
+    RerunScanCallable.Result scanned = new RerunScanCallable(
+        Arrays.asList(first.getAbsolutePath()), lister, 1, DetailBudget.DEFAULT).invoke(null, null);
+    assertEquals(Arrays.asList(first.getAbsolutePath(), second.getAbsolutePath()),
+        new ArrayList<String>(scanned.summaries.keySet()));
+
+    FlakyTestResult testResult =
+        new FlakyTestResult(coreResult, 2, null, DetailBudget.DEFAULT, lister);
+    testResult.tally();
+
+    assertEquals("Wrong number of test cases", 4, testResult.getTotalCount());
+    assertEquals("Wrong number of flaky test cases", 2, testResult.getFlakyTests().size());
+    FlakyCaseResult firstCase = testResult.getSuites().iterator().next().getCases().get(0);
+    assertEquals("testFirst", firstCase.getName());
+    assertEquals(1, firstCase.getFlakyRuns().size());
+    assertEquals("first flaky failure", firstCase.getFlakyRuns().get(0).getFlakyErrorDetails());
+    FlakyCaseResult secondCase = testResult.getSuites().iterator().next().getCases().get(2);
+    assertEquals("testSecond", secondCase.getName());
+    assertEquals(2, secondCase.getFlakyRuns().size());
+    assertEquals("second flaky error 2",
+        secondCase.getFlakyRuns().get(1).getFlakyErrorDetails());
+  }
+
+  /**
+   * Rerun summaries only keep the rerun test cases, with their details truncated.
+   */
+  public void testRerunSummaryTruncatesDetails() throws Exception {
+    File report = getDataFile("flaky-reports/flaky-report-1.xml");
+    RerunSummary summary = RerunScanner.scan(report, new DetailBudget(10, 0, 0));
+
+    List<FlakyCaseResult.FlakyRunInformation> runs = summary.poll(
+        "test.infor.clearux.studio.integration.StudioAllTests",
+        "test.foo.bar.DefaultIntegrationTest", "experimentsWithJavaElements");
+    assertEquals(2, runs.size());
+    assertEquals("flaky\n...[truncated 5 chars]...\nure 1", runs.get(0).getFlakyErrorDetails());
+    assertEquals("flaky\n...[truncated 6 chars]...\nm out", runs.get(0).getFlakyStdOut());
+
+    assertTrue(summary.poll("test.infor.clearux.studio.integration.StudioAllTests",
+        "test.foo.bar.ProjectSettingsTest", "testNatureAddition").isEmpty());
+  }
+
+  /**
+   * Details are truncated while they are read, keeping their head and tail.
+   */
+  public void testDetailBuilderKeepsHeadAndTail() {
+    char[] chars = "abcdefghijklmnop".toCharArray();
+    DetailBuilder builder = new DetailBuilder(7, null);
+    for (int i = 0; i < chars.length; i += 3) {
+      builder.append(chars, i, Math.min(3, chars.length - i));
+    }
+    assertEquals("abc\n...[truncated 10 chars]...\nnop", builder.toString());
+    assertEquals(6, builder.getKeptLength());
+    assertEquals("abcdefg", new DetailBuilder(7, null).append("abcdefg").toString());
+    assertEquals("\n...[truncated 3 chars, limit]...\n",
+        DetailBuilder.truncate("abc", 0, "limit"));
+  }
+
+  /**
+   * Once the case limit is reached, the following details of the test case are dropped.
+   */
+  public void testRerunSummaryAppliesCaseLimit() throws Exception {
+    File report = getDataFile("flaky-reports/flaky-report-1.xml");
+    RerunSummary summary = RerunScanner.scan(report, new DetailBudget(0, 20, 0));
+
+    List<FlakyCaseResult.FlakyRunInformation> runs = summary.poll(
+        "test.infor.clearux.studio.integration.StudioAllTests",
+        "test.foo.bar.DefaultIntegrationTest", "experimentsWithJavaElements");
+    assertEquals(2, runs.size());
+    assertEquals("flaky failure 1", runs.get(0).getFlakyErrorDetails());
+    assertEquals("\n...[truncated 13 chars, " + RerunScanner.CASE_LIMIT_REACHED + "]...\n",
+        runs.get(1).getFlakyErrorDetails());
+
+    // the limit applies to each test case
+    runs = summary.poll("test.infor.clearux.studio.integration.StudioAllTests",
+        "test.foo.bar.BundleResolverIntegrationTest", "testGetBundle");
+    assertEquals("flaky failure 2", runs.get(0).getFlakyErrorDetails());
+  }
+
+  /**
+   * The stack trace of a rerun is charged to the case limit along with its stdout and stderr,
+   * although it is only finished after them.
+   */
+  public void testRerunSummaryCaseLimitIncludesStackTrace() throws Exception {
+    File report = File.createTempFile("caselimit", ".xml");
+    PrintWriter pw = new PrintWriter(new FileWriter(report));
+    try {
+      pw.println("<testsuite name='Suite'>");
+      pw.println("<testcase classname='pkg.Suite' name='test' time='0.001'>");
+      pw.print("<flakyFailure>");
+      pw.print(repeat('t', 500));
+      pw.print("<system-out>" + repeat('o', 500) + "</system-out>");
+      pw.print("<system-err>" + repeat('e', 500) + "</system-err>");
+      pw.println("</flakyFailure>");
+      pw.println("</testcase>");
+      pw.println("</testsuite>");
+    } finally {
+      pw.close();
+    }
+
+    RerunSummary summary;
+    try {
+      summary = RerunScanner.scan(report, new DetailBudget(0, 100, 0));
+    } finally {
+      report.delete();
+    }
+    List<FlakyRunInformation> runs = summary.poll("Suite", "pkg.Suite", "test");
+    assertEquals(1, runs.size());
+    FlakyRunInformation run = runs.get(0);
+    String marker = "\n\\.\\.\\.\\[truncated [^\\]]*\\]\\.\\.\\.\n";
+    int kept = 0;
+    for (String detail : Arrays.asList(run.getFlakyErrorStackTrace(), run.getFlakyStdOut(),
+        run.getFlakyStdErr())) {
+      if (detail != null) {
+        kept += detail.replaceAll(marker, "").length();
+      }
+    }
+    assertTrue("Kept " + kept + " characters", kept <= 100);
+    assertTrue(run.getFlakyErrorStackTrace().startsWith("tt"));
+  }
+
+  private static String repeat(char c, int count) {
+    char[] chars = new char[count];
+    Arrays.fill(chars, c);
+    return new String(chars);
+  }
+
+  /**
+   * Once the build limit is reached, the following details of the build are dropped.
+   */
+  public void testFlakyTestResultAppliesBuildLimit() throws Exception {
+    hudson.tasks.junit.TestResult coreResult = new hudson.tasks.junit.TestResult();
+    coreResult.parse(getDataFile("flaky-reports/flaky-report-1.xml"));
+
+    FlakyTestResult testResult =
+        new FlakyTestResult(coreResult, 1, null, new DetailBudget(0, 0, 40));
+    testResult.tally();
+
+    FlakyCaseResult flakyCase = testResult.getFlakyTests().get(0);
+    assertEquals("flaky failure 1", flakyCase.getFlakyRuns().get(0).getFlakyErrorDetails());
+    FlakyCaseResult failedCase = testResult.getFailedTests().get(0);
+    assertEquals(2, failedCase.getFlakyRuns().size());
+    assertEquals("\n...[truncated 15 chars, " + BuildDetailLimit.BUILD_LIMIT_REACHED + "]...\n",
+        failedCase.getFlakyRuns().get(0).getFlakyErrorDetails());
+  }
+
+  /**
+   * A report copied unchanged to another directory is only scanned once.
+   */
+  public void testReportCacheSkipsUnchangedReports() throws Exception {
+    File first = copyToTempDir(getDataFile("flaky-reports/flaky-report-1.xml"));
+    File second = copyToTempDir(getDataFile("flaky-reports/flaky-report-1.xml"));
+    ReportCache.setMaxSize(10);
+    try {
+      ReportScanStats stats = new ReportScanStats();
+      HashMap<String, RerunSummary> summaries = FlakyTestResult.scanReruns(
+          Arrays.asList(first.getPath(), second.getPath()), 1, DetailBudget.UNLIMITED, stats);
+      assertEquals(2, stats.getReports());
+      assertEquals(1, stats.getCacheHits());
+
+      for (File report : Arrays.asList(first, second)) {
+        List<FlakyCaseResult.FlakyRunInformation> runs = summaries.get(report.getPath()).poll(
+            "test.infor.clearux.studio.integration.StudioAllTests",
+            "test.foo.bar.DefaultIntegrationTest", "experimentsWithJavaElements");
+        assertEquals(2, runs.size());
+        assertEquals("flaky failure 1", runs.get(0).getFlakyErrorDetails());
+      }
+
+      ReportCache.setMaxSize(0);
+      stats = new ReportScanStats();
+      FlakyTestResult.scanReruns(Arrays.asList(first.getPath()), 1, DetailBudget.UNLIMITED, stats);
+      assertEquals(0, stats.getCacheHits());
+    } finally {
+      ReportCache.setMaxSize(0);
+      new FilePath(first.getParentFile()).deleteRecursive();
+      new FilePath(second.getParentFile()).deleteRecursive();
+    }
+  }
+
+  /**
+   * A report with the same name and length as a cached one, but another content, is scanned.
+   */
+  public void testReportCacheScansChangedReportsOfSameLength() throws Exception {
+    File first = copyToTempDir(getDataFile("flaky-reports/flaky-report-1.xml"));
+    File second = copyToTempDir(getDataFile("flaky-reports/flaky-report-1.xml"));
+    FilePath changed = new FilePath(second);
+    changed.write(changed.readToString().replace("flaky failure 1", "flaky failure 9"), "UTF-8");
+    assertEquals(first.length(), second.length());
+    ReportCache.setMaxSize(10);
+    try {
+      ReportScanStats stats = new ReportScanStats();
+      HashMap<String, RerunSummary> summaries = FlakyTestResult.scanReruns(
+          Arrays.asList(first.getPath(), second.getPath(), first.getPath()), 1,
+          DetailBudget.UNLIMITED, stats);
+      assertEquals(3, stats.getReports());
+      assertEquals(1, stats.getCacheHits());
+      assertEquals("flaky failure 9", summaries.get(second.getPath()).poll(
+          "test.infor.clearux.studio.integration.StudioAllTests",
+          "test.foo.bar.DefaultIntegrationTest", "experimentsWithJavaElements")
+          .get(0).getFlakyErrorDetails());
+    } finally {
+      ReportCache.setMaxSize(0);
+      new FilePath(first.getParentFile()).deleteRecursive();
+      new FilePath(second.getParentFile()).deleteRecursive();
+    }
+  }
+
+  /**
+   * Reports without rerun elements are only pre-scanned.
+   */
+  public void testPrescanSkipsReportsWithoutReruns() throws Exception {
+    File flaky = getDataFile("flaky-reports/flaky-report-1.xml");
+    File plain = getDataFile("junit-report-1233.xml");
+    assertTrue(RerunScanner.mayContainReruns(flaky));
+    assertFalse(RerunScanner.mayContainReruns(plain));
+
+    ReportScanStats stats = new ReportScanStats();
+    HashMap<String, RerunSummary> summaries = FlakyTestResult.scanReruns(
+        Arrays.asList(flaky.getPath(), plain.getPath()), 1, DetailBudget.UNLIMITED, stats);
+    assertEquals(2, stats.getReports());
+    assertEquals(1, stats.getWithoutReruns());
+    assertEquals(2, summaries.get(flaky.getPath()).poll(
+        "test.infor.clearux.studio.integration.StudioAllTests",
+        "test.foo.bar.DefaultIntegrationTest", "experimentsWithJavaElements").size());
+    assertNotNull(summaries.get(plain.getPath()));
+  }
+
+  /**
+   * Names of the eclipse report parsed for two builds: each distinct class, package and test name
+   * is only stored once, within a result and across results.
+   */
+  public void testNamesAreStoredOnce() throws Exception {
+    FlakyTestResult first = new FlakyTestResult();
+    first.parse(getDataFile("eclipse-plugin-test-report.xml"));
+    first.tally();
+    FlakyTestResult second = new FlakyTestResult();
+    second.parse(getDataFile("eclipse-plugin-test-report.xml"));
+    second.tally();
+
+    Map<String, String> distinctNames = new HashMap<String, String>();
+    for (FlakyTestResult result : Arrays.asList(first, second)) {
+      for (FlakyPackageResult pkg : result.getChildren()) {
+        List<String> names = new ArrayList<String>();
+        names.add(pkg.getName());
+        for (FlakyClassResult cls : pkg.getChildren()) {
+          names.add(cls.getName());
+          for (FlakyCaseResult c : cls.getChildren()) {
+            names.add(c.getClassName());
+            names.add(c.getName());
+          }
+        }
+        for (String name : names) {
+          String previous = distinctNames.put(name, name);
+          if (previous != null) {
+            assertSame(name, previous, name);
+          }
+        }
+      }
+    }
+
+    List<FlakyCaseResult> firstCases = new ArrayList<FlakyCaseResult>();
+    for (FlakySuiteResult suite : first.getSuites()) {
+      firstCases.addAll(suite.getCases());
+    }
+    List<FlakyCaseResult> secondCases = new ArrayList<FlakyCaseResult>();
+    for (FlakySuiteResult suite : second.getSuites()) {
+      secondCases.addAll(suite.getCases());
+    }
+    assertEquals(firstCases.size(), secondCases.size());
+    for (int i = 0; i < firstCases.size(); i++) {
+      assertSame(firstCases.get(i).getClassName(), secondCases.get(i).getClassName());
+      assertSame(firstCases.get(i).getName(), secondCases.get(i).getName());
+    }
+  }
+
+  /**
+   * Runs failing the same way are grouped by fingerprint, but each keeps its own message and
+   * stack trace; only failures with exactly the same text are shared.
+   */
+  public void testFlakyRunsShareOnlyIdenticalFailures() throws Exception {
+    File report = File.createTempFile("fingerprint", ".xml");
+    PrintWriter pw = new PrintWriter(new FileWriter(report));
+    try {
+      pw.println("<testsuite name='Suite'>");
+      for (int i = 0; i < 3; i++) {
+        pw.println("<testcase classname='pkg.Suite' name='test" + i + "' time='0.001'>");
+        pw.println("<flakyFailure message='expected:&lt;1&gt; at 2014-06-0" + (i + 1)
+            + " 12:00:0" + i + "' type='java.lang.AssertionError'>");
+        pw.println("java.lang.AssertionError: pkg.Value@" + Integer.toHexString(0x1a2b3c + i));
+        pw.println("\tat pkg.Suite.check(Suite.java:" + (10 + i) + ")");
+        pw.println("</flakyFailure>");
+        pw.println("<flakyFailure message='boom' type='java.lang.IllegalStateException'>");
+        pw.println("java.lang.IllegalStateException: boom");
+        pw.println("\tat pkg.Suite.setUp(Suite.java:" + (20 + i) + ")");
+        pw.println("</flakyFailure>");
+        pw.println("</testcase>");
+      }
+      pw.println("</testsuite>");
+    } finally {
+      pw.close();
+    }
+
+    FlakyTestResult result = new FlakyTestResult();
+    result.parse(report);
+    result.tally();
+    report.delete();
+
+    List<FlakyRunInformation> runs = new ArrayList<FlakyRunInformation>();
+    for (FlakyCaseResult c : result.getFlakyTests()) {
+      runs.addAll(c.getFlakyRuns());
+    }
+    assertEquals(6, runs.size());
+
+    Map<String, FlakyRunInformation> byFingerprint = new HashMap<String, FlakyRunInformation>();
+    for (FlakyRunInformation run : runs) {
+      byFingerprint.put(run.getFailureFingerprint(), run);
+    }
+    assertEquals(2, byFingerprint.size());
+
+    FlakyRunInformation first = result.getFlakyTests().get(0).getFlakyRuns().get(0);
+    FlakyRunInformation other = result.getFlakyTests().get(0).getFlakyRuns().get(1);
+    assertFalse(first.isSameFailure(other));
+    for (FlakyCaseResult c : result.getFlakyTests()) {
+      int i = Integer.parseInt(c.getName().substring("test".length()));
+      assertTrue(first.isSameFailure(c.getFlakyRuns().get(0)));
+      assertTrue(other.isSameFailure(c.getFlakyRuns().get(1)));
+      // Each run keeps its own line numbers, addresses and timestamps
+      assertTrue(c.getFlakyRuns().get(0).getFlakyErrorDetails().contains("12:00:0" + i));
+      assertTrue(c.getFlakyRuns().get(0).getFlakyErrorStackTrace()
+          .contains("Suite.java:" + (10 + i) + ")"));
+      assertTrue(c.getFlakyRuns().get(1).getFlakyErrorStackTrace()
+          .contains("Suite.java:" + (20 + i) + ")"));
+    }
+  }
+
+  /**
+   * Runs failing with exactly the same message and stack trace share the same strings.
+   */
+  public void testFlakyRunsShareIdenticalFailures() throws Exception {
+    File report = File.createTempFile("identical", ".xml");
+    PrintWriter pw = new PrintWriter(new FileWriter(report));
+    try {
+      pw.println("<testsuite name='Suite'>");
+      for (int i = 0; i < 3; i++) {
+        pw.println("<testcase classname='pkg.Suite' name='test" + i + "' time='0.001'>");
+        pw.println("<flakyFailure message='boom' type='java.lang.IllegalStateException'>");
+        pw.println("java.lang.IllegalStateException: boom");
+        pw.println("\tat pkg.Suite.setUp(Suite.java:20)");
+        pw.println("</flakyFailure>");
+        pw.println("</testcase>");
+      }
+      pw.println("</testsuite>");
+    } finally {
+      pw.close();
+    }
+
+    FlakyTestResult result = new FlakyTestResult();
+    result.parse(report);
+    result.tally();
+    report.delete();
+
+    FlakyRunInformation first = result.getFlakyTests().get(0).getFlakyRuns().get(0);
+    for (FlakyCaseResult c : result.getFlakyTests()) {
+      FlakyRunInformation run = c.getFlakyRuns().get(0);
+      assertSame(first.getFlakyErrorDetails(), run.getFlakyErrorDetails());
+      assertSame(first.getFlakyErrorStackTrace(), run.getFlakyErrorStackTrace());
+    }
+  }
+
+  public void testRunStdioIsStoredInBuildDirectory() throws Exception {
+    File buildDir = copyToTempDir(getDataFile("flaky-reports/flaky-report-1.xml")).getParentFile();
+    try {
+      FlakyTestResult first = new FlakyTestResult();
+      first.parse(getDataFile("flaky-reports/flaky-report-1.xml"));
+      first.tally();
+      FlakyTestResult second = new FlakyTestResult();
+      second.parse(getDataFile("flaky-reports/flaky-report-1.xml"));
+      second.tally();
+
+      RunStdioFile.store(buildDir, first);
+      // the second result is appended to the same file
+      RunStdioFile.store(buildDir, second);
+      File stdioFile = RunStdioFile.of(buildDir);
+      assertTrue(stdioFile.isFile());
+
+      for (FlakyTestResult result : Arrays.asList(first, second)) {
+        FlakyCaseResult flakyCase = result.getFlakyTests().get(0);
+        FlakyRunInformation run = flakyCase.getFlakyRuns().get(1);
+        assertNull(run.getFlakyStdOut());
+        assertNull(run.getFlakyStdErr());
+        assertEquals("error system out", run.getFlakyStdOut(stdioFile));
+        assertEquals("error system err", run.getFlakyStdErr(stdioFile));
+
+        FlakyCaseResult failedCase = result.getFailedTests().get(0);
+        assertEquals("flaky system out 2",
+            failedCase.getFlakyRuns().get(0).getFlakyStdOut(stdioFile));
+        assertEquals("error system err 2",
+            failedCase.getFlakyRuns().get(1).getFlakyStdErr(stdioFile));
+      }
+    } finally {
+      new FilePath(buildDir).deleteRecursive();
+    }
+  }
+
+  private static File copyToTempDir(File report) throws IOException, InterruptedException {
+    File dir = File.createTempFile("reports", "");
+    dir.delete();
+    dir.mkdir();
+    File copy = new File(dir, report.getName());
+    new FilePath(report).copyTo(new FilePath(copy));
+    return copy;
+  }
+
   private static final XStream XSTREAM = new XStream2();
 
   static {
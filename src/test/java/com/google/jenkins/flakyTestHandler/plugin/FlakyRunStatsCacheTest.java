@@ -0,0 +1,191 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.cache.CacheStats;
+import com.google.jenkins.flakyTestHandler.plugin.FlakyTestResultAction.FlakyRunStats;
+import com.google.jenkins.flakyTestHandler.plugin.HistoryAggregatedFlakyTestResultAction.SingleTestFlakyStats;
+import com.google.jenkins.flakyTestHandler.plugin.HistoryAggregatedFlakyTestResultAction.SingleTestFlakyStatsWithRevision;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test the controller wide cache of the flaky stats of builds
+ */
+public class FlakyRunStatsCacheTest {
+
+  @After
+  public void tearDown() {
+    FlakyRunStatsCache.setMaxWeight(FlakyRunStatsCache.DEFAULT_MAX_WEIGHT);
+    FlakyRunStatsCache.invalidateAll();
+  }
+
+  @Test
+  public void testConcurrentLoadsReadStatsOnce() throws Exception {
+    final CountingAction action = new CountingAction(new FlakyRunStats());
+    action.loading = new CountDownLatch(1);
+    CacheStats before = FlakyRunStatsCache.getStats();
+
+    final FlakyRunStats[] loaded = new FlakyRunStats[2];
+    Thread first = new Thread() {
+      @Override
+      public void run() {
+        loaded[0] = action.getFlakyRunStats();
+      }
+    };
+    first.start();
+    Thread second = new Thread() {
+      @Override
+      public void run() {
+        loaded[1] = action.getFlakyRunStats();
+      }
+    };
+    second.start();
+    Thread.sleep(100);
+    action.loading.countDown();
+    first.join();
+    second.join();
+
+    assertEquals(1, action.loads.get());
+    assertSame(loaded[0], loaded[1]);
+    assertSame(loaded[0], action.getFlakyRunStats());
+    assertEquals(1, action.loads.get());
+
+    CacheStats stats = FlakyRunStatsCache.getStats().minus(before);
+    assertEquals(1, stats.loadCount());
+    assertEquals(3, stats.requestCount());
+  }
+
+  @Test
+  public void testStatsAreEvictedBeyondMaxWeight() {
+    FlakyRunStatsCache.setMaxWeight(40);
+    CacheStats before = FlakyRunStatsCache.getStats();
+
+    CountingAction big = new CountingAction(statsOfTests(30));
+    CountingAction other = new CountingAction(statsOfTests(30));
+    big.getFlakyRunStats();
+    other.getFlakyRunStats();
+    big.getFlakyRunStats();
+
+    assertEquals(2, big.loads.get());
+    assertTrue(FlakyRunStatsCache.getStats().minus(before).evictionCount() > 0);
+
+    // the stats of a build just computed are cached
+    FlakyRunStats computed = statsOfTests(1);
+    other.setFlakyRunStats(computed);
+    assertSame(computed, other.getFlakyRunStats());
+    assertEquals(1, other.loads.get());
+  }
+
+  /**
+   * Jenkins core loads the Guava it bundles before the one of the plugin, so the cache must only
+   * use what that older Guava provides.
+   */
+  @Test
+  public void testCacheWorksWithCoreGuava() throws Exception {
+    File coreGuava = new File("target/core-guava/guava.jar");
+    assertTrue("Missing " + coreGuava, coreGuava.isFile());
+    ClassLoader loader = new CoreGuavaClassLoader(coreGuava);
+    assertEquals(coreGuava.toURI().toURL(), loader.loadClass("com.google.common.cache.CacheBuilder")
+        .getProtectionDomain().getCodeSource().getLocation());
+
+    Class<?> cacheClass = Class.forName(FlakyRunStatsCache.class.getName(), true, loader);
+    cacheClass.getMethod("setMaxWeight", long.class).invoke(null, 10L);
+    assertEquals(10L, cacheClass.getMethod("getMaxWeight").invoke(null));
+    assertEquals(0L, cacheClass.getMethod("size").invoke(null));
+    Object stats = cacheClass.getMethod("getStats").invoke(null);
+    assertEquals(0L, stats.getClass().getMethod("requestCount").invoke(stats));
+  }
+
+  /**
+   * Loads Guava from the given jar and the classes of the plugin itself, everything else from
+   * the test class path
+   */
+  private static final class CoreGuavaClassLoader extends URLClassLoader {
+
+    CoreGuavaClassLoader(File guava) throws MalformedURLException {
+      super(new URL[] {guava.toURI().toURL(),
+          FlakyRunStatsCache.class.getProtectionDomain().getCodeSource().getLocation()},
+          FlakyRunStatsCacheTest.class.getClassLoader());
+    }
+
+    @Override
+    protected synchronized Class<?> loadClass(String name, boolean resolve)
+        throws ClassNotFoundException {
+      if (!name.startsWith("com.google.common.")
+          && !name.startsWith("com.google.jenkins.flakyTestHandler.")) {
+        return super.loadClass(name, resolve);
+      }
+      Class<?> c = findLoadedClass(name);
+      if (c == null) {
+        c = findClass(name);
+      }
+      if (resolve) {
+        resolveClass(c);
+      }
+      return c;
+    }
+  }
+
+  private static FlakyRunStats statsOfTests(int testCount) {
+    Map<String, SingleTestFlakyStatsWithRevision> map =
+        new HashMap<String, SingleTestFlakyStatsWithRevision>();
+    for (int i = 0; i < testCount; i++) {
+      map.put("Test.test" + i, new SingleTestFlakyStatsWithRevision(
+          new SingleTestFlakyStats(1, 0, 0), "1"));
+    }
+    return new FlakyRunStats(map);
+  }
+
+  /**
+   * Action counting the loads of its stats, which may wait for a latch
+   */
+  private static class CountingAction extends FlakyTestResultAction {
+    final AtomicInteger loads = new AtomicInteger();
+    final FlakyRunStats stats;
+    volatile CountDownLatch loading;
+
+    CountingAction(FlakyRunStats stats) {
+      this.stats = stats;
+    }
+
+    @Override
+    FlakyRunStats load() {
+      loads.incrementAndGet();
+      if (loading != null) {
+        try {
+          loading.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      return stats;
+    }
+  }
+}
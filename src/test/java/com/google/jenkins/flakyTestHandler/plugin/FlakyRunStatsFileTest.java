@@ -0,0 +1,187 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.jenkins.flakyTestHandler.plugin.FlakyTestResultAction.FlakyRunStats;
+import com.google.jenkins.flakyTestHandler.plugin.HistoryAggregatedFlakyTestResultAction.SingleTestFlakyStats;
+import com.google.jenkins.flakyTestHandler.plugin.HistoryAggregatedFlakyTestResultAction.SingleTestFlakyStatsWithRevision;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import hudson.XmlFile;
+import hudson.util.XStream2;
+
+/**
+ * Test the binary form of the flaky stats of a build
+ */
+public class FlakyRunStatsFileTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testStatsAreReadBack() throws Exception {
+    Map<String, SingleTestFlakyStatsWithRevision> map =
+        new HashMap<String, SingleTestFlakyStatsWithRevision>();
+    put(map, "com.example.FooTest.testB", "abc123", 1, 0, 0);
+    put(map, "com.example.FooTest.testA", "abc123", 1, 2, 0);
+    put(map, "com.example.BarTest.test[\u00e9\u4e2d]", "abc123", 0, 3, 0);
+    put(map, "org.Other.test", "def456", 300, 0, 70000);
+    File buildDir = folder.newFolder();
+    FlakyTestResultAction.save(buildDir, new FlakyRunStats(map));
+
+    final List<String> names = new ArrayList<String>();
+    FlakyRunStatsFile.read(FlakyRunStatsFile.of(buildDir), new FlakyRunStatsFile.Visitor() {
+      public void start(String revision) {
+      }
+
+      public void visit(String testName, String revision, int pass, int fail, int flake) {
+        names.add(testName);
+      }
+    });
+    assertEquals(new TreeSet<String>(map.keySet()), new TreeSet<String>(names));
+    assertEquals(map.size(), names.size());
+
+    Map<String, SingleTestFlakyStatsWithRevision> read =
+        FlakyTestResultAction.load(buildDir).getTestFlakyStatsWithRevisionMap();
+    assertEquals(map.size(), read.size());
+    for (Map.Entry<String, SingleTestFlakyStatsWithRevision> entry : map.entrySet()) {
+      SingleTestFlakyStatsWithRevision test = read.get(entry.getKey());
+      assertEquals(entry.getValue().getRevision(), test.getRevision());
+      assertEquals(entry.getValue().getStats().getPass(), test.getStats().getPass());
+      assertEquals(entry.getValue().getStats().getFail(), test.getStats().getFail());
+      assertEquals(entry.getValue().getStats().getFlake(), test.getStats().getFlake());
+    }
+    // the revision is stored once
+    assertSame(read.get("com.example.FooTest.testA").getRevision(),
+        read.get("com.example.FooTest.testB").getRevision());
+  }
+
+  @Test
+  public void testLegacyXmlIsReadWithoutBinaryFile() throws Exception {
+    Map<String, SingleTestFlakyStatsWithRevision> map =
+        new HashMap<String, SingleTestFlakyStatsWithRevision>();
+    put(map, "com.example.FooTest.testA", "1", 0, 1, 0);
+    File buildDir = folder.newFolder();
+    new XmlFile(new XStream2(), new File(buildDir, "junitFlakyStatsResult.xml"))
+        .write(new FlakyRunStats(map));
+
+    FlakyRunStats stats = FlakyTestResultAction.load(buildDir);
+    assertEquals(1, stats.getTestFlakyStatsWithRevisionMap().size());
+    assertEquals(1, stats.getTestFlakyStatsWithRevisionMap().get("com.example.FooTest.testA")
+        .getStats().getFail());
+
+    // a binary file in an unknown format falls back to the XML
+    FileOutputStream out = new FileOutputStream(FlakyRunStatsFile.of(buildDir));
+    try {
+      out.write("<?xml".getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+    try {
+      FlakyRunStatsFile.read(FlakyRunStatsFile.of(buildDir));
+      fail("Read a file which is not a flaky stats file");
+    } catch (IOException expected) {
+    }
+    assertEquals(1, FlakyTestResultAction.load(buildDir).getTestFlakyStatsWithRevisionMap().size());
+  }
+
+  @Test
+  public void testBinaryFileIsSmallerThanXml() throws Exception {
+    Map<String, SingleTestFlakyStatsWithRevision> map =
+        new HashMap<String, SingleTestFlakyStatsWithRevision>();
+    for (int i = 0; i < 1000; i++) {
+      put(map, "com.example.GeneratedTest.test" + i, "0123456789abcdef0123456789abcdef01234567",
+          1, 0, 0);
+    }
+    File buildDir = folder.newFolder();
+    FlakyTestResultAction.save(buildDir,
+        new FlakyRunStats("0123456789abcdef0123456789abcdef01234567", map));
+    File xml = new File(buildDir, "junitFlakyStatsResult.xml");
+    new XmlFile(new XStream2(), xml).write(new FlakyRunStats(map));
+
+    long binaryLength = FlakyRunStatsFile.of(buildDir).length();
+    assertTrue(binaryLength + " bytes", binaryLength * 20 < xml.length());
+    // the revision is only stored once, tests only take their name and counters
+    assertTrue(binaryLength + " bytes", binaryLength < 1000 * 8);
+    assertEquals("0123456789abcdef0123456789abcdef01234567",
+        FlakyTestResultAction.load(buildDir).getRevision());
+  }
+
+  @Test
+  public void testPassingTestsAreHeldSparsely() throws Exception {
+    Map<String, SingleTestFlakyStatsWithRevision> map =
+        new HashMap<String, SingleTestFlakyStatsWithRevision>();
+    for (int i = 0; i < 100; i++) {
+      put(map, "com.example.FooTest.test" + i, "abc123", 1, 0, 0);
+    }
+    put(map, "com.example.FooTest.flaky", "abc123", 1, 2, 0);
+    put(map, "com.example.FooTest.merged", "def456", 1, 0, 0);
+    FlakyRunStats stats = new FlakyRunStats("abc123", map);
+    assertEquals(100, stats.getPassedTests().length);
+    assertEquals(102, stats.getTestCount());
+    assertTrue(stats.isFlaked());
+
+    File buildDir = folder.newFolder();
+    FlakyTestResultAction.save(buildDir, stats);
+    FlakyRunStats read = FlakyTestResultAction.load(buildDir);
+    assertEquals(100, read.getPassedTests().length);
+    assertEquals(2, read.getOtherTests().size());
+    assertTrue(read.getTestNames().contains("com.example.FooTest.test42"));
+    assertTrue(read.getTestNames().contains("com.example.FooTest.merged"));
+    assertEquals(102, read.getTestNames().size());
+
+    final Map<String, Integer> passes = new HashMap<String, Integer>();
+    read.visit(new FlakyTestResultAction.TestStatsVisitor() {
+      public void visit(String testName, String revision, SingleTestFlakyStats stats) {
+        passes.put(testName + "@" + revision, stats.getPass());
+      }
+    });
+    assertEquals(102, passes.size());
+    assertEquals(Integer.valueOf(1), passes.get("com.example.FooTest.test7@abc123"));
+    assertEquals(Integer.valueOf(1), passes.get("com.example.FooTest.merged@def456"));
+
+    // legacy callers get all the tests
+    assertEquals(102, read.getTestFlakyStatsWithRevisionMap().size());
+    assertEquals("abc123", read.getTestFlakyStatsWithRevisionMap()
+        .get("com.example.FooTest.test42").getRevision());
+    // without expanding the run itself, which may be cached
+    assertEquals(100, read.getPassedTests().length);
+    assertEquals(2, read.getOtherTests().size());
+    assertEquals(102, read.getTestCount());
+  }
+
+  private static void put(Map<String, SingleTestFlakyStatsWithRevision> map, String testName,
+      String revision, int pass, int fail, int flake) {
+    map.put(testName, new SingleTestFlakyStatsWithRevision(
+        new SingleTestFlakyStats(pass, fail, flake), revision));
+  }
+}
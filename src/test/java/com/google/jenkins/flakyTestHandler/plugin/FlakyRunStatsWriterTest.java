@@ -0,0 +1,100 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.jenkins.flakyTestHandler.plugin.FlakyTestResultAction.FlakyRunStats;
+import com.google.jenkins.flakyTestHandler.plugin.HistoryAggregatedFlakyTestResultAction.SingleTestFlakyStats;
+import com.google.jenkins.flakyTestHandler.plugin.HistoryAggregatedFlakyTestResultAction.SingleTestFlakyStatsWithRevision;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.StreamBuildListener;
+
+/**
+ * Test that the flaky stats of builds are written in the background
+ */
+public class FlakyRunStatsWriterTest {
+
+  @Rule
+  public JenkinsRule jenkins = new JenkinsRule();
+
+  @Test
+  public void testStatsAreReadFromMemoryUntilWritten() throws Exception {
+    FreeStyleProject project = jenkins.createFreeStyleProject("project");
+    FreeStyleBuild build = new FreeStyleBuild(project);
+    build.getRootDir().mkdirs();
+    FlakyTestResultAction action = new FlakyTestResultAction();
+    action.onAttached(build);
+
+    FlakyRunStats stats = statsOfOneFailure();
+    action.setFlakyRunStats(stats, new StreamBuildListener(new ByteArrayOutputStream()));
+    FlakyRunStatsCache.invalidateAll();
+    // either still pending or already on disk
+    assertEquals(1, action.getFlakyRunStats().getTestCount());
+
+    FlakyRunStatsWriter.flush();
+    assertNull(FlakyRunStatsWriter.getPending(action));
+    assertTrue(FlakyRunStatsFile.of(build.getRootDir()).exists());
+    FlakyRunStatsCache.invalidateAll();
+    assertEquals(1, action.getFlakyRunStats().getTestFlakyStatsWithRevisionMap()
+        .get("Test.test").getStats().getFail());
+    assertNull(action.getPersistError());
+  }
+
+  @Test
+  public void testFailedWriteIsReportedOnBuild() throws Exception {
+    FreeStyleProject project = jenkins.createFreeStyleProject("project");
+    FreeStyleBuild build = new FreeStyleBuild(project);
+    // a directory in the way of the temporary file, so the stats can't be written
+    assertTrue(new File(FlakyRunStatsFile.of(build.getRootDir()).getPath() + ".tmp").mkdirs());
+    FlakyTestResultAction action = new FlakyTestResultAction();
+    action.onAttached(build);
+
+    ByteArrayOutputStream log = new ByteArrayOutputStream();
+    FlakyRunStats stats = statsOfOneFailure();
+    action.setFlakyRunStats(stats, new StreamBuildListener(log));
+    FlakyRunStatsWriter.flush();
+
+    assertNotNull(action.getPersistError());
+    assertTrue(log.toString(), log.toString().contains(
+        "Failed to save the JUnit flaky test stats result"));
+    assertNull(FlakyRunStatsWriter.getPending(action));
+    // the stats computed for the build are still served from the cache
+    assertSame(stats, action.getFlakyRunStats());
+  }
+
+  private static FlakyRunStats statsOfOneFailure() {
+    Map<String, SingleTestFlakyStatsWithRevision> map =
+        new HashMap<String, SingleTestFlakyStatsWithRevision>();
+    map.put("Test.test", new SingleTestFlakyStatsWithRevision(
+        new SingleTestFlakyStats(0, 1, 0), "1"));
+    return new FlakyRunStats("1", map);
+  }
+}
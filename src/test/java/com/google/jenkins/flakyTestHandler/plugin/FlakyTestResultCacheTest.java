@@ -0,0 +1,124 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+
+import com.google.jenkins.flakyTestHandler.junit.FlakyTestResult;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.File;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.TaskListener;
+import hudson.tasks.junit.TestResult;
+import hudson.tasks.test.AbstractTestResultAction;
+
+/**
+ * Test that the publisher and the archiver share the flaky test result of a build
+ */
+public class FlakyTestResultCacheTest {
+
+  @Rule
+  public JenkinsRule jenkins = new JenkinsRule();
+
+  @Test
+  public void testFlakyTestResultIsSharedUntilBuildCompletes() throws Exception {
+    FreeStyleProject project = jenkins.createFreeStyleProject("project");
+    FreeStyleBuild build = new FreeStyleBuild(project);
+
+    FlakyTestResult first = FlakyTestResultCache.getFrozenFlakyTestResult(build,
+        parse("flaky-reports/flaky-report-1.xml"), null, TaskListener.NULL);
+    // The archiver may see a test result reloaded from disk
+    FlakyTestResult second = FlakyTestResultCache.getFrozenFlakyTestResult(build,
+        parse("flaky-reports/flaky-report-1.xml"), null, TaskListener.NULL);
+    assertSame(first, second);
+    assertEquals(5, second.getTotalCount());
+
+    new FlakyTestResultCache().onCompleted(build, TaskListener.NULL);
+    assertNotSame(first, FlakyTestResultCache.getFrozenFlakyTestResult(build,
+        parse("flaky-reports/flaky-report-1.xml"), null, TaskListener.NULL));
+  }
+
+  @Test
+  public void testChangedTestResultIsParsedAgain() throws Exception {
+    FreeStyleProject project = jenkins.createFreeStyleProject("project");
+    FreeStyleBuild build = new FreeStyleBuild(project);
+
+    FlakyTestResult first = FlakyTestResultCache.getFrozenFlakyTestResult(build,
+        parse("flaky-reports/flaky-report-1.xml"), null, TaskListener.NULL);
+    TestResult merged = parse("flaky-reports/flaky-report-1.xml");
+    merged.parse(getDataFile("junit-report-1233.xml"));
+    FlakyTestResult second = FlakyTestResultCache.getFrozenFlakyTestResult(build, merged, null,
+        TaskListener.NULL);
+
+    assertNotSame(first, second);
+    assertEquals(merged.getSuites().size(), second.getSuites().size());
+    FlakyTestResultCache.release(build);
+  }
+
+  @Test
+  public void testTestResultWithOtherSuitesIsParsedAgain() throws Exception {
+    FreeStyleProject project = jenkins.createFreeStyleProject("project");
+    FreeStyleBuild build = new FreeStyleBuild(project);
+
+    // Same number of suites and cases, but another suite
+    FlakyTestResult first = FlakyTestResultCache.getFrozenFlakyTestResult(build,
+        parse("JENKINS-12457/TestSuite_a1.xml"), null, TaskListener.NULL);
+    FlakyTestResult second = FlakyTestResultCache.getFrozenFlakyTestResult(build,
+        parse("JENKINS-12457/TestSuite_b.xml"), null, TaskListener.NULL);
+
+    assertNotSame(first, second);
+    assertEquals("TestSuite_b", second.getSuites().iterator().next().getName());
+    FlakyTestResultCache.release(build);
+  }
+
+  @Test
+  public void testResultFrozenWithAnotherActionIsNotFrozenAgain() throws Exception {
+    FreeStyleProject project = jenkins.createFreeStyleProject("project");
+    FreeStyleBuild build = new FreeStyleBuild(project);
+    AbstractTestResultAction action = mock(AbstractTestResultAction.class);
+
+    FlakyTestResult first = FlakyTestResultCache.getFrozenFlakyTestResult(build,
+        parse("flaky-reports/flaky-report-1.xml"), null, TaskListener.NULL);
+    FlakyTestResult second = FlakyTestResultCache.getFrozenFlakyTestResult(build,
+        parse("flaky-reports/flaky-report-1.xml"), action, TaskListener.NULL);
+
+    assertNotSame(first, second);
+    assertNull(first.getParentAction());
+    assertSame(action, second.getParentAction());
+    assertSame(second, FlakyTestResultCache.getFrozenFlakyTestResult(build,
+        parse("flaky-reports/flaky-report-1.xml"), action, TaskListener.NULL));
+    FlakyTestResultCache.release(build);
+  }
+
+  private TestResult parse(String name) throws Exception {
+    TestResult testResult = new TestResult();
+    testResult.parse(getDataFile(name));
+    return testResult;
+  }
+
+  private File getDataFile(String name) throws Exception {
+    return new File(FlakyTestResult.class.getResource(name).toURI());
+  }
+}